@@ -0,0 +1,331 @@
+import com.sun.management.ThreadMXBean;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Micro benchmarks for the rendezvous, gossip and search paths, plus loopback registration and broadcast fan-out runs
+// against a real Server10B.
+// Usage: java Benchmarks [name filter...]
+//   -Dbench.searchResponse=<file>  parse a captured Custom Search response instead of the built-in sample
+//   -Dbench.serverPort=<port>      port for the loopback Server10B (default 5900, the broadcast run uses the next one)
+//   -Dbench.clients=<n>            clients registered in the loopback run (default 2000)
+//   -Dbench.peers=<n>              peers joined for the loopback broadcast run (default 50)
+//   -Dbench.firstPeerPort=<port>   those peers listen on consecutive ports from here (default 23000)
+//   -Dbench.broadcasts=<n>         broadcasts timed in the loopback broadcast run (default 500)
+public class Benchmarks {
+    private static final long WARMUP_MS = 1000;
+    private static final long ITERATION_MS = 1000;
+    private static final int ITERATIONS = 5;
+
+    // Results are written here so the JIT can't drop the work being measured
+    private static volatile Object sink;
+
+    interface Benchmark {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> filters = Arrays.asList(args);
+
+        // Gossip message encode/decode as done by the connection pool and InboundReader
+        PeerMessage message = PeerMessage.broadcast(3, "distributed systems papers 2024: gossip, membership");
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        ByteBuffer[] encodeBuffer = { ByteBuffer.allocate(256) };
+        ByteBuffer frame = message.encode(ByteBuffer.allocate(256), encoder).duplicate();
+        frame.position(4); // Skip the length prefix, InboundReader decodes only the frame body
+        String textLine = message.toTextLine();
+
+        run(filters, "peerMessage.encodeBinary", () -> encodeBuffer[0] = message.encode(encodeBuffer[0], encoder));
+        run(filters, "peerMessage.decodeBinary", () -> PeerMessage.decode(frame.duplicate()));
+        run(filters, "peerMessage.textRoundTrip", () -> PeerMessage.parseTextLine(message.toTextLine()));
+        run(filters, "peerMessage.parseText", () -> PeerMessage.parseTextLine(textLine));
+
+        // Preparing one broadcast to 100 peers: every connection encoding its own copy, as before
+        // FramePool, against one pooled frame that every connection takes a view of
+        ByteBuffer[] connectionBuffers = new ByteBuffer[100];
+        Arrays.setAll(connectionBuffers, i -> ByteBuffer.allocate(256));
+        run(filters, "broadcast.encodePerPeer.100", () -> {
+            for (int i = 0; i < connectionBuffers.length; i++) {
+                connectionBuffers[i] = message.encode(connectionBuffers[i], encoder);
+            }
+            return connectionBuffers;
+        });
+        run(filters, "broadcast.encodeShared.100", () -> {
+            FramePool.Frame shared = FramePool.encode(message, 100);
+            int bytes = 0;
+            for (int i = 0; i < 100; i++) {
+                bytes += shared.view().remaining();
+                shared.release();
+            }
+            return bytes;
+        });
+
+        // Client list serialization on the server and parsing on the peer
+        List<Server10B.ClientInfo> batch = serverClients(10);
+        List<Server10B.ClientInfo> swarm = serverClients(1000);
+        String swarmList = new String(Server10B.encodeClientList(swarm), StandardCharsets.UTF_8);
+        String swarmEntries = swarmList.substring(swarmList.indexOf('\n') + 1);
+
+        run(filters, "server.encodeClientList.10", () -> Server10B.encodeClientList(batch));
+        run(filters, "server.encodeClientList.1000", () -> Server10B.encodeClientList(swarm));
+        run(filters, "peer.readPeerList.1000", () -> PeerClient10C.readPeerList(new BufferedReader(new StringReader(swarmEntries))));
+
+        // ClientInfo lookups as done by the connection pool
+        List<PeerClient10C.ClientInfo> peers = PeerClient10C.readPeerList(new BufferedReader(new StringReader(swarmEntries)));
+        Map<PeerClient10C.ClientInfo, Integer> byPeer = new HashMap<>();
+        for (PeerClient10C.ClientInfo peer : peers) {
+            byPeer.put(peer, peer.getId());
+        }
+        PeerClient10C.ClientInfo probe = new PeerClient10C.ClientInfo(0, "10.0.3.231", 6981);
+        run(filters, "peer.clientInfoLookup", () -> byPeer.get(probe));
+
+        // Link extraction on a recorded or sample search response
+        byte[] searchResponse = loadSearchResponse();
+        run(filters, "search.parseResults", () -> GoogleSearchService.parseResults(new ByteArrayInputStream(searchResponse)));
+        run(filters, "search.parseResultsTree", () -> parseResultsTree(searchResponse));
+
+        if (filters.isEmpty() || matches(filters, "loopback.registration")) {
+            loopbackRegistration();
+        }
+        if (filters.isEmpty() || matches(filters, "loopback.broadcast")) {
+            loopbackBroadcast();
+        }
+    }
+
+    // The org.json tree parse GoogleSearchService used before SearchLinkExtractor, kept as the baseline
+    private static List<String> parseResultsTree(byte[] response) {
+        List<String> urls = new ArrayList<>();
+        JSONObject jsonObject = new JSONObject(new String(response, StandardCharsets.UTF_8));
+        if (jsonObject.has("items")) {
+            JSONArray items = jsonObject.getJSONArray("items");
+            for (int i = 0; i < items.length(); i++) {
+                urls.add(items.getJSONObject(i).getString("link"));
+            }
+        }
+        return urls;
+    }
+
+    private static void run(List<String> filters, String name, Benchmark benchmark) throws Exception {
+        if (!filters.isEmpty() && !matches(filters, name)) {
+            return;
+        }
+
+        // Warm up so the JIT has compiled the path before we measure it
+        long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MS);
+        while (System.nanoTime() < warmupEnd) {
+            sink = benchmark.run();
+        }
+
+        double best = Double.MAX_VALUE;
+        double total = 0;
+        long totalOps = 0;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + TimeUnit.MILLISECONDS.toNanos(ITERATION_MS);
+            long now;
+            do {
+                sink = benchmark.run();
+                ops++;
+            } while ((now = System.nanoTime()) < end);
+            totalOps += ops;
+            double nanosPerOp = (double) (now - start) / ops;
+            best = Math.min(best, nanosPerOp);
+            total += nanosPerOp;
+        }
+
+        double average = total / ITERATIONS;
+        double bytesPerOp = (double) (allocatedBytes() - allocatedBefore) / totalOps;
+        System.out.printf("%-32s %12.1f ns/op  (best %.1f)  %,14.0f ops/s  %,10.0f B/op%n", name, average, best, 1e9 / average, bytesPerOp);
+    }
+
+    // Heap allocated by this thread so far, the GC churn a benchmark causes; -1 where the JVM can't tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof ThreadMXBean) {
+            return ((ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static boolean matches(List<String> filters, String name) {
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Server10B.ClientInfo> serverClients(int count) {
+        List<Server10B.ClientInfo> clients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            clients.add(new Server10B.ClientInfo("10.0." + (i / 250) + "." + (i % 250), 6000 + i));
+        }
+        return clients;
+    }
+
+    private static byte[] loadSearchResponse() throws IOException {
+        String path = System.getProperty("bench.searchResponse");
+        if (path != null) {
+            return Files.readAllBytes(Paths.get(path));
+        }
+
+        // Shaped like a real Custom Search response: metadata first, then ten items with nested pagemap links
+        StringBuilder json = new StringBuilder();
+        json.append("{\"kind\":\"customsearch#search\",\"url\":{\"type\":\"application/json\",\"template\":\"https://www.googleapis.com/customsearch/v1?q={searchTerms}\"},")
+            .append("\"queries\":{\"request\":[{\"title\":\"Google Custom Search - gossip\",\"totalResults\":\"1230000\",\"count\":10,\"startIndex\":1}]},")
+            .append("\"searchInformation\":{\"searchTime\":0.31,\"formattedTotalResults\":\"1,230,000\"},\"items\":[");
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"kind\":\"customsearch#result\",\"title\":\"Result ").append(i).append(" \\u2013 Epidemic protocols\",")
+                .append("\"htmlTitle\":\"Result <b>").append(i).append("</b>\",\"link\":\"https:\\/\\/example.org\\/papers\\/gossip-").append(i).append(".html\",")
+                .append("\"displayLink\":\"example.org\",\"snippet\":\"Gossip, or epidemic, protocols spread information in O(log N) rounds...\",")
+                .append("\"pagemap\":{\"cse_thumbnail\":[{\"src\":\"https://example.org/t").append(i).append(".png\",\"width\":\"225\",\"height\":\"225\"}],")
+                .append("\"metatags\":[{\"og:url\":\"https://example.org/papers/gossip-").append(i).append(".html\",\"link\":\"nested\"}]}}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Register clients against a real Server10B on loopback, measuring registrations per second
+    // and the latency from sending "PORT:<n>" to receiving the batch's client list
+    private static void loopbackRegistration() throws Exception {
+        int port = Integer.getInteger("bench.serverPort", 5900);
+        int clients = Integer.getInteger("bench.clients", 2000);
+
+        // The server logs every registration, keep that out of the benchmark output
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ExecutorService registrants = Executors.newFixedThreadPool(64);
+        try {
+            Thread server = new Thread(() -> Server10B.main(new String[] { String.valueOf(port) }), "loopback-server");
+            server.setDaemon(true);
+            server.start();
+            Loopback.waitForPort(port);
+
+            List<Future<Long>> latencies = new ArrayList<>(clients);
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                int clientPort = 20000 + i;
+                latencies.add(registrants.submit(() -> registerOnce(port, clientPort)));
+            }
+
+            long[] nanos = new long[clients];
+            for (int i = 0; i < clients; i++) {
+                nanos[i] = latencies.get(i).get();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(nanos);
+            console.printf("%-32s %,12.0f registrations/s  list latency p50 %.2f ms  p99 %.2f ms  max %.2f ms%n",
+                    "loopback.registration", clients / (elapsed / 1e9),
+                    Loopback.percentile(nanos, 0.50) / 1e6, Loopback.percentile(nanos, 0.99) / 1e6, nanos[nanos.length - 1] / 1e6);
+        } finally {
+            System.setOut(console);
+            registrants.shutdownNow(); // Not daemons, a failed registration must not leave them keeping the JVM alive
+        }
+    }
+
+    // Join peers through a real Server10B on loopback, then broadcast to all of them from one connection pool,
+    // measuring broadcasts per second and the latency until the send to every peer has completed
+    private static void loopbackBroadcast() throws Exception {
+        int port = Integer.getInteger("bench.serverPort", 5900) + 1;
+        int peerCount = Integer.getInteger("bench.peers", 50);
+        int firstPeerPort = Integer.getInteger("bench.firstPeerPort", 23000);
+        int broadcasts = Integer.getInteger("bench.broadcasts", 500);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<PeerClient10C> peers = new ArrayList<>(peerCount);
+        PeerConnectionPool pool = new PeerConnectionPool();
+        ExecutorService joiners = Executors.newFixedThreadPool(peerCount);
+        try {
+            Thread server = new Thread(() -> Server10B.main(new String[] { String.valueOf(port) }), "loopback-broadcast-server");
+            server.setDaemon(true);
+            server.start();
+            Loopback.waitForPort(port);
+
+            // Joins block until the server releases a batch, so they run side by side
+            List<Future<PeerClient10C>> joined = new ArrayList<>(peerCount);
+            for (int i = 0; i < peerCount; i++) {
+                int peerPort = firstPeerPort + i;
+                joined.add(joiners.submit(() -> {
+                    PeerClient10C peer = new PeerClient10C(peerPort);
+                    peer.setBroadcastListener(payload -> { }); // Not MainApp.abc(), deliveries shouldn't start searches
+                    peer.startListening();
+                    peer.join("127.0.0.1", port);
+                    return peer;
+                }));
+            }
+            List<PeerClient10C.ClientInfo> targets = new ArrayList<>(peerCount);
+            for (int i = 0; i < peerCount; i++) {
+                peers.add(joined.get(i).get());
+                targets.add(new PeerClient10C.ClientInfo(i + 1, "127.0.0.1", firstPeerPort + i));
+            }
+
+            // Warm up, which also opens and negotiates the pooled connections
+            for (int i = 0; i < Math.min(broadcasts, 50); i++) {
+                pool.broadcast(targets, PeerMessage.broadcast(0, "loopback broadcast " + i)).join();
+            }
+
+            long[] nanos = new long[broadcasts];
+            long unreached = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < broadcasts; i++) {
+                PeerMessage message = PeerMessage.broadcast(0, "loopback broadcast " + i); // A new ID, so peers don't drop it as a duplicate
+                long sent = System.nanoTime();
+                PeerConnectionPool.BroadcastResult result = pool.broadcast(targets, message).join();
+                nanos[i] = System.nanoTime() - sent;
+                unreached += targets.size() - result.getReachedCount();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(nanos);
+            console.printf("%-32s %,12.0f broadcasts/s  to %d peers  p50 %.2f ms  p99 %.2f ms  max %.2f ms  unreached %d%n",
+                    "loopback.broadcast", broadcasts / (elapsed / 1e9), peerCount,
+                    Loopback.percentile(nanos, 0.50) / 1e6, Loopback.percentile(nanos, 0.99) / 1e6, nanos[nanos.length - 1] / 1e6, unreached);
+        } finally {
+            System.setOut(console);
+            joiners.shutdownNow(); // Not daemons, a failed join must not leave them keeping the JVM alive
+            pool.closeAll();
+            for (PeerClient10C peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    private static long registerOnce(int serverPort, int clientPort) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", serverPort)) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            long sent = System.nanoTime();
+            socket.getOutputStream().write(("PORT:" + clientPort + "\n").getBytes(StandardCharsets.UTF_8));
+
+            String line;
+            while ((line = input.readLine()) != null && !line.isEmpty()) {
+                // Drain the header and the list up to the terminating empty line
+            }
+            return System.nanoTime() - sent;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Outbound half of the connection between two rendezvous nodes: pushes this node's local JOIN/LEAVE changes
+// to one other node. It reconnects with backoff and resends the whole local membership after every reconnect,
+// so a node that restarted gets back everything it lost.
+public class ClusterLink {
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long HEARTBEAT_MS = 1000; // Idle links write an empty line so a restarted peer node is noticed
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final String selfAddress;
+    private final String remoteAddress;
+    private final Function<ClusterLink, List<String>> resync; // Restarts the outbox and returns the local members, atomically
+    private final BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+    private volatile boolean connected; // Changes are only queued while linked, a reconnect resends everything anyway
+    private volatile boolean closed;
+
+    public ClusterLink(String selfAddress, String remoteAddress, Function<ClusterLink, List<String>> resync) {
+        this.selfAddress = selfAddress;
+        this.remoteAddress = remoteAddress;
+        this.resync = resync;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "cluster-link-" + remoteAddress);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    // Queue one "JOIN:<ip>:<port>" or "LEAVE:<ip>:<port>" line for the remote node, dropped while it is unreachable
+    public void offer(String line) {
+        if (connected) {
+            outbox.add(line);
+        }
+    }
+
+    // Called under the membership lock during resync: anything queued so far is covered by the snapshot,
+    // changes from here on are queued for the new connection
+    void startQueueing() {
+        outbox.clear();
+        connected = true;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    private void run() {
+        long backoffMs = MIN_BACKOFF_MS;
+        while (!closed) {
+            try (Socket socket = new Socket()) {
+                socket.connect(toSocketAddress(remoteAddress), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+                out.write("NODE:" + selfAddress + "\n");
+                for (String line : resync.apply(this)) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+                Log.info("Linked to rendezvous node {}", remoteAddress);
+                backoffMs = MIN_BACKOFF_MS;
+
+                while (!closed) {
+                    String line = outbox.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    if (line == null) {
+                        out.write('\n');
+                    }
+                    // Send everything that piled up in one flush
+                    while (line != null) {
+                        out.write(line);
+                        out.write('\n');
+                        line = outbox.poll();
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                connected = false;
+                outbox.clear(); // The next resync covers it
+                Log.warn("Link to rendezvous node {} failed: {}, retrying in {} ms", remoteAddress, e.getMessage(), backoffMs);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    static InetSocketAddress toSocketAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,97 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded pool of direct buffers that outgoing frames are encoded into. A message is encoded once,
+// every connection it goes to writes its own view of the same bytes straight to the socket, and the buffer
+// goes back to the pool when the last of them is done. Frames too large for a pooled buffer, or encoded while
+// every pooled buffer is in use, fall back to a plain heap buffer.
+public class FramePool {
+    private static final int BUFFER_SIZE = 4096; // Covers any gossip message short of a pasted document
+    private static final int MAX_BUFFERS = 256; // Direct memory the pool may hold: 1 MB
+
+    private static final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger allocated = new AtomicInteger();
+    private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+    // Published through Metrics
+    private static final LongAdder encoded = Metrics.counter("frames.encoded");
+    private static final LongAdder unpooled = Metrics.counter("frames.unpooled");
+
+    static {
+        Metrics.gauge("frames.pooled", allocated::get);
+        Metrics.gauge("frames.free", free::size);
+    }
+
+    // Encode the message once for the given number of writers, each of which must release the frame.
+    // Throws IllegalArgumentException for a message too large for a frame, the buffer goes back to the pool.
+    public static Frame encode(PeerMessage message, int writers) {
+        ByteBuffer buffer = acquire();
+        ByteBuffer frame = null;
+        try {
+            frame = message.encode(buffer, encoders.get());
+        } finally {
+            if (frame != buffer) {
+                release(buffer); // Didn't fit and the encoder grew it into a heap buffer, or encoding failed
+            }
+        }
+        if (frame != buffer) {
+            unpooled.increment();
+        }
+        encoded.increment();
+        return new Frame(message, frame, writers);
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated.incrementAndGet() <= MAX_BUFFERS) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        allocated.decrementAndGet();
+        unpooled.increment();
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE) {
+            buffer.clear();
+            free.add(buffer);
+        }
+    }
+
+    // One encoded message shared by several writers, reference counted
+    public static class Frame {
+        private final PeerMessage message;
+        private final ByteBuffer buffer;
+        private final AtomicInteger writers;
+
+        private Frame(PeerMessage message, ByteBuffer buffer, int writers) {
+            this.message = message;
+            this.buffer = buffer;
+            this.writers = new AtomicInteger(writers);
+        }
+
+        public PeerMessage getMessage() {
+            return message;
+        }
+
+        // A view with its own position, so writers can drain the frame concurrently
+        public ByteBuffer view() {
+            return buffer.duplicate();
+        }
+
+        // Called once by every writer, the last one hands the buffer back
+        public void release() {
+            if (writers.decrementAndGet() == 0) {
+                FramePool.release(buffer);
+            }
+        }
+    }
+}
@@ -1,12 +1,18 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class GoogleSearchService {
 
@@ -14,85 +20,136 @@ public class GoogleSearchService {
     private static final String API_KEY = "insert your API";
     private static final String SEARCH_ENGINE_ID = "insert your cxd";
 
-    // Method to perform a search and return the list of URLs and time taken
+    // Endpoint base URL, can be pointed at a local stub server with -Dsearch.endpoint=http://127.0.0.1:8089/search
+    private static final String SEARCH_ENDPOINT = System.getProperty("search.endpoint", "https://www.googleapis.com/customsearch/v1");
+
+    // Timeouts, overridable with -Dsearch.connectTimeoutMs and -Dsearch.requestTimeoutMs
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMillis(Long.getLong("search.connectTimeoutMs", 5000));
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMillis(Long.getLong("search.requestTimeoutMs", 10000));
+
+    // Shared client, keeps connections alive between searches and uses HTTP/2 when the server offers it
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+
+    // Cache misses are queued here and sent at the provider's rate, tunable with -Dsearch.ratePerSecond,
+    // -Dsearch.burst, -Dsearch.queueCapacity, -Dsearch.maxInFlight and -Dsearch.maxAttempts
+    private static final SearchDispatcher dispatcher = new SearchDispatcher(GoogleSearchService::fetchSearch,
+            Integer.getInteger("search.queueCapacity", 256),
+            Double.parseDouble(System.getProperty("search.ratePerSecond", "5")),
+            Integer.getInteger("search.burst", 10),
+            Integer.getInteger("search.maxInFlight", 16),
+            Integer.getInteger("search.maxAttempts", 4));
+
+    // Identical queries from a batch of peers and duplicate deliveries are answered from here
+    private static final SearchResultCache cache = new SearchResultCache(1024, 10, TimeUnit.MINUTES, dispatcher::submit);
+
+    // Calls that actually reached the search API and how long they took, published through Metrics
+    private static final LongAdder searchRequests = Metrics.counter("search.requests");
+    private static final LongAdder searchErrors = Metrics.counter("search.httpErrors");
+    private static final LatencyHistogram searchLatency = Metrics.histogram("search.latency");
+
+    static {
+        Metrics.gauge("search.cache.hits", cache::getHits);
+        Metrics.gauge("search.cache.misses", cache::getMisses);
+        Metrics.gauge("search.cache.coalesced", cache::getCoalesced);
+        Metrics.gauge("search.cache.evictions", cache::getEvictions);
+        Metrics.gauge("search.cache.size", cache::size);
+        Metrics.gauge("search.queue.depth", dispatcher::getQueueDepth);
+        Metrics.gauge("search.queue.rejected", dispatcher::getRejected);
+        Metrics.gauge("search.queue.retried", dispatcher::getRetried);
+        Metrics.gauge("search.queue.failed", dispatcher::getFailed);
+    }
+
+    // Method to perform a search and return the list of URLs and time taken, served from the cache when possible
     public static SearchResult performSearch(String query, int numResults) {
-        List<String> searchResults = new ArrayList<>();
-        long elapsedTime = 0;
-        
         try {
-            // URL encode the query to handle special characters
-            String encodedQuery = URLEncoder.encode(query, "UTF-8");
+            return performSearchAsync(query, numResults).join();
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+        }
+
+        // Failed searches aren't cached, return an empty result like before
+        return new SearchResult(new ArrayList<>(), 0);
+    }
 
-            // Construct the search URL
-            String searchURL = "https://www.googleapis.com/customsearch/v1?key=" + API_KEY +
-                               "&cx=" + SEARCH_ENGINE_ID + 
-                               "&q=" + encodedQuery + "&num=" + numResults;
+    // Same search without blocking the caller, completes exceptionally if the search fails
+    public static CompletableFuture<SearchResult> performSearchAsync(String query, int numResults) {
+        return cache.getAsync(query, numResults);
+    }
+
+    public static SearchResultCache getCache() {
+        return cache;
+    }
 
-            // Start time: Before sending the HTTP request
-            long startTime = System.currentTimeMillis();  // You can also use System.nanoTime()
+    public static SearchDispatcher getDispatcher() {
+        return dispatcher;
+    }
 
-            // Send the HTTP request and get the response
-            String jsonResponse = sendHttpRequest(searchURL);
+    // Method to run the search against the API, called by the dispatcher once the rate limit allows
+    private static CompletableFuture<SearchResult> fetchSearch(String query, int numResults) {
+        // URL encode the query to handle special characters
+        String encodedQuery = URLEncoder.encode(query, StandardCharsets.UTF_8);
 
-            // End time: After receiving the response
-            long endTime = System.currentTimeMillis();  // Or System.nanoTime()
+        // Construct the search URL
+        String searchURL = SEARCH_ENDPOINT + "?key=" + URLEncoder.encode(API_KEY, StandardCharsets.UTF_8) +
+                           "&cx=" + URLEncoder.encode(SEARCH_ENGINE_ID, StandardCharsets.UTF_8) +
+                           "&q=" + encodedQuery + "&num=" + numResults;
 
-            // Calculate the time difference
-            elapsedTime = endTime - startTime;  // In milliseconds
+        HttpRequest request = HttpRequest.newBuilder(URI.create(searchURL))
+                .timeout(REQUEST_TIMEOUT)
+                .GET()
+                .build();
 
-            // Parse the search results and get the URLs
-            searchResults = parseResults(jsonResponse);
+        // Start time: Before sending the HTTP request
+        long startTime = System.nanoTime();
+        searchRequests.increment();
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        // Send the HTTP request, then stream the links out of the body as it arrives
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .thenApply(response -> {
+                    try (InputStream body = response.body()) {
+                        if (response.statusCode() != 200) {
+                            searchErrors.increment();
+                            String errorContent = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                            throw new SearchFailedException(response.statusCode(), errorContent);
+                        }
+
+                        // Parse the search results and get the URLs
+                        List<String> urls = parseResults(body);
 
-        // Return the search results along with the time taken
-        return new SearchResult(searchResults, elapsedTime);
+                        // Calculate the time difference, including reading the body
+                        long elapsedNanos = System.nanoTime() - startTime;
+                        searchLatency.recordNanos(elapsedNanos);
+                        long elapsedTime = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+
+                        // Return the search results along with the time taken
+                        return new SearchResult(urls, elapsedTime);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
     }
 
-    // Helper method to send HTTP GET request and return the response
-    private static String sendHttpRequest(String searchURL) throws Exception {
-        URL url = new URL(searchURL);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-
-        int responseCode = connection.getResponseCode();
-        if (responseCode == 200) { // Success
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String inputLine;
-            StringBuilder content = new StringBuilder();
-            while ((inputLine = in.readLine()) != null) {
-                content.append(inputLine);
-            }
-            in.close();
-            return content.toString();
-        } else {
-            BufferedReader errorReader = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-            String inputLine;
-            StringBuilder errorContent = new StringBuilder();
-            while ((inputLine = errorReader.readLine()) != null) {
-                errorContent.append(inputLine);
-            }
-            errorReader.close();
-            throw new Exception("Failed : HTTP Error code : " + responseCode + " Response: " + errorContent.toString());
-        }
+    // Helper method to parse search results from the JSON response stream and return URLs
+    static List<String> parseResults(InputStream jsonResponse) throws IOException {
+        return SearchLinkExtractor.extractLinks(jsonResponse);
     }
 
-    // Helper method to parse search results from JSON response and return URLs
-    private static List<String> parseResults(String jsonResponse) {
-        List<String> urls = new ArrayList<>();
-        JSONObject jsonObject = new JSONObject(jsonResponse);
-        
-        if (jsonObject.has("items")) {
-            JSONArray items = jsonObject.getJSONArray("items");
-            for (int i = 0; i < items.length(); i++) {
-                JSONObject item = items.getJSONObject(i);
-                String link = item.getString("link");
-                urls.add(link);  // Add the URL to the list
-            }
+    // Non-200 answer from the search API, keeps the status code so callers can tell throttling from bad requests
+    public static class SearchFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public SearchFailedException(int statusCode, String responseBody) {
+            super("Failed : HTTP Error code : " + statusCode + " Response: " + responseBody);
+            this.statusCode = statusCode;
         }
 
-        return urls;
+        public int getStatusCode() {
+            return statusCode;
+        }
     }
 }
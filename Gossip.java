@@ -0,0 +1,257 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Push-pull epidemic dissemination for one peer, the alternative to the coin-flip broadcast/forward protocol.
+// Push: a new message goes to fanout random live peers, and every peer that receives it for the first time
+// pushes it on until its rounds run out, so it reaches most peers in about log_fanout(N) rounds while each
+// peer sends it at most fanout times. Pull: every pull interval the peer sends a digest of the IDs it holds
+// to one peer, which resends what the digest lacks and asks for what it lacks itself.
+// Configured with -Dpeer.gossip.fanout (default 3), -Dpeer.gossip.rounds (default derived from the peer count)
+// and -Dpeer.gossip.pullIntervalMs (default 1000).
+public class Gossip {
+    private static final int MAX_DIGEST_IDS = 256; // Newest messages named in one digest
+    private static final int MAX_REPAIRS = 64; // Messages resent in answer to one digest or pull
+    private static final ScheduledExecutorService antiEntropyScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gossip-anti-entropy"); // Only builds digests, sends run on the pool
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Across all peers in the JVM, published through Metrics
+    private static final LongAdder pushes = Metrics.counter("gossip.pushes");
+    private static final LongAdder digestsSent = Metrics.counter("gossip.digestsSent");
+    private static final LongAdder pullsSent = Metrics.counter("gossip.pullsSent");
+    private static final LongAdder repairsSent = Metrics.counter("gossip.repairsSent");
+
+    private final int selfPort;
+    private final Supplier<List<PeerClient10C.ClientInfo>> peers;
+    private final PeerConnectionPool connectionPool;
+    private final SeenMessages seenMessages;
+    private final Consumer<PeerMessage> deliver;
+    private final RecentMessages recent = new RecentMessages(1024, 1, TimeUnit.MINUTES);
+    private final Random random = new Random();
+    private final int fanout = Math.max(1, Integer.getInteger("peer.gossip.fanout", 3));
+    private final int rounds = Integer.getInteger("peer.gossip.rounds", 0); // 0 means derive from the peer count
+    private final long pullIntervalMs = Long.getLong("peer.gossip.pullIntervalMs", 1000);
+    private ScheduledFuture<?> antiEntropy;
+
+    public Gossip(int selfPort, Supplier<List<PeerClient10C.ClientInfo>> peers, PeerConnectionPool connectionPool,
+                  SeenMessages seenMessages, Consumer<PeerMessage> deliver) {
+        this.selfPort = selfPort;
+        this.peers = peers;
+        this.connectionPool = connectionPool;
+        this.seenMessages = seenMessages;
+        this.deliver = deliver;
+    }
+
+    // Start the periodic anti-entropy exchange, staggered so peers started together don't pull in lockstep
+    public synchronized void start() {
+        if (antiEntropy == null && pullIntervalMs > 0) {
+            long initialDelay = ThreadLocalRandom.current().nextLong(pullIntervalMs);
+            antiEntropy = antiEntropyScheduler.scheduleAtFixedRate(this::sendDigest, initialDelay, pullIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (antiEntropy != null) {
+            antiEntropy.cancel(false);
+            antiEntropy = null;
+        }
+    }
+
+    // Originate a message: deliver it here and start the first round
+    public PeerMessage publish(String payload) {
+        PeerMessage message = PeerMessage.gossip(roundsFor(peers.get().size()), payload);
+        seenMessages.markSeen(message.getDedupKey()); // Copies coming back are dropped as duplicates
+        recent.add(message);
+        deliver.accept(message);
+        push(message);
+        return message;
+    }
+
+    // Hold a message replayed from the journal so digests offer it again, without delivering or pushing it
+    public void remember(PeerMessage message) {
+        recent.add(message);
+    }
+
+    // Handle a GOSSIP, DIGEST or PULL frame the handler has already checked for duplicates
+    public void handle(PeerMessage message, String senderIp) {
+        if (message.isGossip()) {
+            recent.add(message);
+            deliver.accept(message);
+            if (message.canBeRelayed()) {
+                push(message.nextRound());
+            }
+        } else if (message.isDigest()) {
+            answerDigest(message.getPayload(), senderIp);
+        } else {
+            answerPull(message.getPayload(), senderIp);
+        }
+    }
+
+    // Rounds needed for fanout^rounds to pass the peer count, plus one to make up for overlapping targets
+    int roundsFor(int peerCount) {
+        if (rounds > 0) {
+            return rounds;
+        }
+        double base = Math.max(2, fanout);
+        return (int) Math.ceil(Math.log(Math.max(2, peerCount)) / Math.log(base)) + 1;
+    }
+
+    private void push(PeerMessage message) {
+        for (PeerClient10C.ClientInfo target : pickTargets(fanout)) {
+            pushes.increment();
+            send(target, message);
+        }
+    }
+
+    // Anti-entropy, started on the scheduler: tell one peer which messages this peer holds
+    private void sendDigest() {
+        List<PeerClient10C.ClientInfo> targets = pickTargets(1);
+        if (targets.isEmpty()) {
+            return;
+        }
+        digestsSent.increment();
+        send(targets.get(0), PeerMessage.digest(encodeIds(recent.recentIds(MAX_DIGEST_IDS))));
+    }
+
+    // Resend what the digest's sender is missing, and ask it for what this peer is missing
+    private void answerDigest(String payload, String senderIp) {
+        PeerClient10C.ClientInfo sender = senderOf(payload, senderIp);
+        Set<Long> theirs = decodeIds(payload);
+        if (sender == null || theirs == null) {
+            Log.debug("Ignoring malformed digest: {}", payload);
+            return;
+        }
+
+        int resent = 0;
+        for (long id : recent.recentIds(MAX_DIGEST_IDS)) {
+            if (resent >= MAX_REPAIRS) {
+                break;
+            }
+            PeerMessage message = recent.get(id);
+            if (!theirs.contains(id) && message != null) {
+                repairsSent.increment();
+                send(sender, message.asRepair());
+                resent++;
+            }
+        }
+
+        List<Long> missing = new ArrayList<>();
+        for (long id : theirs) {
+            if (missing.size() < MAX_REPAIRS && !recent.contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            pullsSent.increment();
+            send(sender, PeerMessage.pull(encodeIds(missing)));
+        }
+    }
+
+    private void answerPull(String payload, String senderIp) {
+        PeerClient10C.ClientInfo sender = senderOf(payload, senderIp);
+        Set<Long> wanted = decodeIds(payload);
+        if (sender == null || wanted == null) {
+            Log.debug("Ignoring malformed pull: {}", payload);
+            return;
+        }
+        int resent = 0;
+        for (long id : wanted) {
+            PeerMessage message = recent.get(id);
+            if (message != null && resent++ < MAX_REPAIRS) {
+                repairsSent.increment();
+                send(sender, message.asRepair());
+            }
+        }
+    }
+
+    private void send(PeerClient10C.ClientInfo target, PeerMessage message) {
+        connectionPool.sendAsync(target, message).thenAccept(outcome -> {
+            if (!outcome.isReached()) {
+                Log.debug("Gossip to peer {}:{} failed", target.getIpAddress(), target.getPort());
+            }
+        });
+    }
+
+    // Up to count distinct live peers other than this one, chosen at random
+    List<PeerClient10C.ClientInfo> pickTargets(int count) {
+        List<PeerClient10C.ClientInfo> candidates = connectionPool.getHealth().live(peers.get());
+        candidates.removeIf(this::isSelf);
+        if (candidates.size() <= count) {
+            return candidates;
+        }
+        // Partial Fisher-Yates: only the first count slots need shuffling
+        for (int i = 0; i < count; i++) {
+            Collections.swap(candidates, i, i + random.nextInt(candidates.size() - i));
+        }
+        return candidates.subList(0, count);
+    }
+
+    // The server lists this peer too. On a LAN it shows up under an address we can't cheaply recognise,
+    // those rare self-sends are dropped as duplicates.
+    private boolean isSelf(PeerClient10C.ClientInfo peer) {
+        if (peer.getPort() != selfPort) {
+            return false;
+        }
+        try {
+            return InetAddress.getByName(peer.getIpAddress()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    // "<listenPort>;<hex id>,<hex id>,..." so the receiver knows where to send its answer
+    private String encodeIds(List<Long> ids) {
+        StringBuilder payload = new StringBuilder().append(selfPort).append(';');
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(Long.toHexString(ids.get(i)));
+        }
+        return payload.toString();
+    }
+
+    private static PeerClient10C.ClientInfo senderOf(String payload, String senderIp) {
+        int separator = payload.indexOf(';');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return new PeerClient10C.ClientInfo(0, senderIp, Integer.parseInt(payload.substring(0, separator)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Set<Long> decodeIds(String payload) {
+        String ids = payload.substring(payload.indexOf(';') + 1);
+        Set<Long> decoded = new HashSet<>();
+        if (ids.isEmpty()) {
+            return decoded;
+        }
+        try {
+            for (String id : ids.split(",")) {
+                decoded.add(Long.parseUnsignedLong(id, 16));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return decoded;
+    }
+}
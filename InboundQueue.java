@@ -0,0 +1,254 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded queue of one peer's inbound messages, between the I/O threads that decode them and the workers that
+// handle them. Three priority classes: deliveries (broadcast, gossip) go before forwards, and forwards before
+// digests, pulls and catch-up requests, which are the cheapest to lose since anti-entropy asks again.
+// When the queue is full the overload policy decides:
+//   block       the reader stops reading until the queue is half empty, so TCP slows the senders down (default)
+//   dropOldest  room is made by dropping the oldest message of the lowest priority queued
+//   reject      the new message is dropped
+// Workers come from a pool shared by every peer in the JVM, one peer takes at most workersPerPeer of them.
+// Handlers never wait on the network, relays are queued on the connection pool's fan-out threads, so a reader
+// paused here never waits, through a worker, on another peer's paused reader.
+// Configured with -Dpeer.inbound.queueCapacity (default 1024), -Dpeer.inbound.overload,
+// -Dpeer.inbound.workers (default 16) and -Dpeer.inbound.workersPerPeer (default 4).
+public class InboundQueue {
+    public enum Overload {
+        BLOCK, DROP_OLDEST, REJECT;
+
+        // Accepts "dropOldest", "drop-oldest" and "DROP_OLDEST" alike
+        static Overload parse(String name) {
+            String wanted = name.replace("-", "").replace("_", "");
+            for (Overload overload : values()) {
+                if (overload.name().replace("_", "").equalsIgnoreCase(wanted)) {
+                    return overload;
+                }
+            }
+            throw new IllegalArgumentException("Unknown overload policy: " + name);
+        }
+    }
+
+    interface Handler {
+        void handle(PeerMessage message, String senderIp);
+    }
+
+    private static final int PRIORITIES = 3;
+    private static final int BATCH = 64; // Messages one worker handles before other peers' queues get the thread
+    private static final long CLOSE_TIMEOUT_MS = 5000; // Longer than handling any one message takes
+
+    private static final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Integer.getInteger("peer.inbound.workers", 16)), runnable -> {
+        Thread thread = new Thread(runnable, "peer-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Set<InboundQueue> queues = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong peakDepth = new AtomicLong();
+
+    // Across all peers in the JVM, published through Metrics
+    private static final LongAdder enqueued = Metrics.counter("peer.inbound.enqueued");
+    private static final LongAdder dropped = Metrics.counter("peer.inbound.dropped");
+    private static final LongAdder rejected = Metrics.counter("peer.inbound.rejected");
+    private static final LongAdder blocked = Metrics.counter("peer.inbound.blocked"); // Times a full queue paused a reader
+    private static final LatencyHistogram queueWait = Metrics.histogram("peer.inbound.queueWait");
+
+    static {
+        Metrics.gauge("peer.inbound.depth", () -> {
+            long depth = 0;
+            for (InboundQueue queue : queues) {
+                depth += queue.size();
+            }
+            return depth;
+        });
+        Metrics.gauge("peer.inbound.peakDepth", peakDepth::get);
+    }
+
+    private final Handler handler;
+    private final int capacity;
+    private final Overload overload;
+    private final int maxWorkers;
+    private final List<ArrayDeque<Entry>> pending = new ArrayList<>(PRIORITIES); // Indexed by priority, 0 first
+    private final List<Runnable> waitingForSpace = new ArrayList<>();
+    private int size;
+    private int activeWorkers;
+    private boolean closed;
+
+    public InboundQueue(Handler handler, int capacity, Overload overload, int maxWorkers) {
+        this.handler = handler;
+        this.capacity = Math.max(1, capacity);
+        this.overload = overload;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        for (int i = 0; i < PRIORITIES; i++) {
+            pending.add(new ArrayDeque<>());
+        }
+        queues.add(this);
+    }
+
+    // The queue configured by system properties
+    public static InboundQueue fromProperties(Handler handler) {
+        return new InboundQueue(handler,
+                Integer.getInteger("peer.inbound.queueCapacity", 1024),
+                Overload.parse(System.getProperty("peer.inbound.overload", "block")),
+                Integer.getInteger("peer.inbound.workersPerPeer", 4));
+    }
+
+    // Queue a message for the workers. Returns false only under the block policy when the queue is full:
+    // the message was not taken and the caller should hold it and stop reading until whenSpace runs.
+    public boolean offer(PeerMessage message, String senderIp) {
+        int priority = priorityOf(message);
+        boolean startWorker;
+        synchronized (this) {
+            if (closed) {
+                return true;
+            }
+            if (size >= capacity) {
+                if (overload == Overload.BLOCK) {
+                    blocked.increment();
+                    return false;
+                }
+                if (overload == Overload.REJECT || !dropOldest(priority)) {
+                    rejected.increment();
+                    return true;
+                }
+            }
+            pending.get(priority).add(new Entry(message, senderIp, System.nanoTime()));
+            size++;
+            peakDepth.accumulateAndGet(size, Math::max);
+            startWorker = activeWorkers < maxWorkers;
+            if (startWorker) {
+                activeWorkers++;
+            }
+        }
+        enqueued.increment();
+        if (startWorker) {
+            workers.execute(this::drain);
+        }
+        return true;
+    }
+
+    // Run the callback once the queue is down to half its capacity, right away if it already is
+    public void whenSpace(Runnable callback) {
+        synchronized (this) {
+            if (size > capacity / 2 && !closed) {
+                waitingForSpace.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Discard what is still queued, messages offered from now on are dropped. Waits for the messages already
+    // being handled, so the peer can close what the handlers use afterwards.
+    public void close() {
+        queues.remove(this);
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<Entry> messages : pending) {
+                messages.clear();
+            }
+            size = 0;
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+            long remaining;
+            while (activeWorkers > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (activeWorkers > 0) {
+                Log.warn("Closed the inbound queue with {} messages still being handled", activeWorkers);
+            }
+        }
+    }
+
+    private void drain() {
+        for (int handled = 0; ; handled++) {
+            Entry entry;
+            List<Runnable> resumed = null;
+            synchronized (this) {
+                if (handled == BATCH && size > 0) {
+                    workers.execute(this::drain); // To the back of the pool's queue, still counted as active
+                    return;
+                }
+                entry = poll();
+                if (entry == null) {
+                    if (--activeWorkers == 0) {
+                        notifyAll(); // close() may be waiting
+                    }
+                    return;
+                }
+                if (!waitingForSpace.isEmpty() && size <= capacity / 2) {
+                    resumed = new ArrayList<>(waitingForSpace);
+                    waitingForSpace.clear();
+                }
+            }
+            if (resumed != null) {
+                resumed.forEach(Runnable::run);
+            }
+
+            queueWait.recordSince(entry.enqueuedAt);
+            try {
+                handler.handle(entry.message, entry.senderIp);
+            } catch (RuntimeException e) {
+                Log.warn("Handling a message from {} failed: {}", entry.senderIp, e);
+            }
+        }
+    }
+
+    private Entry poll() {
+        for (ArrayDeque<Entry> messages : pending) {
+            Entry entry = messages.poll();
+            if (entry != null) {
+                size--;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Drop the oldest message that is no more important than the new one, false if there is none
+    private boolean dropOldest(int priority) {
+        for (int i = PRIORITIES - 1; i >= priority; i--) {
+            if (pending.get(i).poll() != null) {
+                size--;
+                dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int priorityOf(PeerMessage message) {
+        if (message.isBroadcast() || message.isGossip()) {
+            return 0;
+        }
+        return message.isForward() ? 1 : 2;
+    }
+
+    private static class Entry {
+        private final PeerMessage message;
+        private final String senderIp;
+        private final long enqueuedAt;
+
+        Entry(PeerMessage message, String senderIp, long enqueuedAt) {
+            this.message = message;
+            this.senderIp = senderIp;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
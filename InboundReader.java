@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Accepts and reads one peer's inbound connections without a thread per connection. A few I/O threads, shared by
+// every peer in the JVM, each run a selector; they only read and decode, handling is left to the peer's InboundQueue.
+// A connection opens with a text line: PeerMessage.BINARY_HELLO switches it to length-prefixed frames, anything else
+// makes it a legacy connection of text lines. When the queue is full under the block policy the reader stops reading:
+// undecoded bytes stay buffered, the socket's receive window fills and the senders' writes stall until there is room.
+// Pings are answered right here on the I/O thread, so the sender's round trip never includes time in the queue;
+// a reader paused for longer than the sender waits for the pong counts as unresponsive.
+// Configured with -Dpeer.inbound.ioThreads (default 2).
+public class InboundReader {
+    private static final int INITIAL_BUFFER_SIZE = 8192; // Grows up to the largest frame when one needs it
+    private static final IoThread[] ioThreads = new IoThread[Math.max(1, Integer.getInteger("peer.inbound.ioThreads", 2))];
+    private static final AtomicInteger nextIoThread = new AtomicInteger();
+    private static final long ACCEPT_RETRY_MS = 100; // Pause after a failed accept, typically out of file descriptors
+    private static final long ACCEPT_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final ScheduledExecutorService acceptRetry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "peer-accept-retry"); // Only waits out the pause, accepting runs on the I/O thread
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Across all peers in the JVM, published through Metrics
+    private static final LongAdder acceptFailures = Metrics.counter("peer.inbound.acceptFailures");
+
+    private final int port;
+    private final InboundQueue queue;
+    private final IoThread io; // All of this peer's connections, so pausing and resuming them needs no locking
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final List<Connection> paused = new ArrayList<>(); // Only touched on the I/O thread
+    private ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+    private long lastAcceptLogNanos = System.nanoTime() - ACCEPT_LOG_INTERVAL_NANOS; // I/O thread only
+    private int unloggedAcceptFailures;
+
+    public InboundReader(int port, InboundQueue queue) {
+        this.port = port;
+        this.queue = queue;
+        this.io = ioThread(nextIoThread.getAndIncrement() % ioThreads.length);
+    }
+
+    // Bind the port here, so a port in use fails the caller, and start accepting on the I/O thread
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        io.execute(() -> {
+            try {
+                serverChannel.register(io.selector, SelectionKey.OP_ACCEPT, this);
+            } catch (IOException e) {
+                Log.error("Peer listener on port {} failed: {}", port, e);
+            }
+        });
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (Connection connection : connections) {
+            connection.close(); // Senders notice on their next write and reconnect
+        }
+    }
+
+    private static synchronized IoThread ioThread(int index) {
+        if (ioThreads[index] == null) {
+            ioThreads[index] = new IoThread("peer-io-" + index);
+            ioThreads[index].start();
+        }
+        return ioThreads[index];
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(io.selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            Log.debug("Connected to peer: {}", connection.senderIp);
+        }
+    }
+
+    // The accept key stays ready while accepting fails, so stop accepting for a moment instead of spinning
+    // the I/O thread that other peers' connections share, and log the failures at most every few seconds
+    private void acceptFailed(SelectionKey key, IOException e) {
+        acceptFailures.increment();
+        unloggedAcceptFailures++;
+        long now = System.nanoTime();
+        if (now - lastAcceptLogNanos >= ACCEPT_LOG_INTERVAL_NANOS) {
+            Log.error("Accepting peer connections on port {} failed {} times: {}", port, unloggedAcceptFailures, e);
+            lastAcceptLogNanos = now;
+            unloggedAcceptFailures = 0;
+        }
+        key.interestOps(0);
+        acceptRetry.schedule(() -> io.execute(() -> {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }), ACCEPT_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // A connection found the queue full, retry it with the others once the queue has room
+    private void pause(Connection connection) {
+        boolean first = paused.isEmpty();
+        paused.add(connection);
+        if (first) {
+            queue.whenSpace(() -> io.execute(this::resumeAll));
+        }
+    }
+
+    private void resumeAll() {
+        List<Connection> resuming = new ArrayList<>(paused);
+        paused.clear();
+        for (Connection connection : resuming) {
+            connection.resume();
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final String senderIp;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Always in fill mode
+        private boolean binary;
+        private boolean negotiated; // The first line has been read
+        private PeerMessage held; // Decoded but refused by a full queue
+        private boolean endOfStream;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.senderIp = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        void read() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                throw new IOException("Line from peer too long");
+            }
+            endOfStream = channel.read(readBuffer) < 0;
+            if (process() && endOfStream) {
+                close();
+            }
+        }
+
+        // Offer the held message and whatever else is buffered, then read again if the queue took it all
+        void resume() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                if (held != null) {
+                    if (!queue.offer(held, senderIp)) {
+                        pause(this);
+                        return;
+                    }
+                    held = null;
+                }
+                if (!process()) {
+                    return;
+                }
+                if (endOfStream) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e); // A runtime exception here is a key cancelled by close()
+            }
+        }
+
+        // Decode and queue every complete message in the buffer. Returns false when the queue filled up and
+        // reading was paused, the rest stays buffered.
+        private boolean process() throws IOException {
+            int start = 0;
+            try {
+                while (true) {
+                    int available = readBuffer.position() - start;
+                    PeerMessage message;
+                    if (binary) {
+                        if (available < 4) {
+                            break;
+                        }
+                        int frameLength = readBuffer.getInt(start);
+                        if (frameLength <= 0 || frameLength > PeerMessage.MAX_FRAME_LENGTH) {
+                            throw new IOException("Invalid frame length: " + frameLength);
+                        }
+                        if (available < 4 + frameLength) {
+                            ensureCapacity(4 + frameLength);
+                            break;
+                        }
+                        ByteBuffer frame = readBuffer.duplicate();
+                        frame.limit(start + 4 + frameLength).position(start + 4);
+                        message = PeerMessage.decode(frame);
+                        start += 4 + frameLength;
+                        if (message.isPing()) {
+                            answer(message);
+                            continue;
+                        }
+                    } else {
+                        int end = indexOf('\n', start);
+                        if (end < 0) {
+                            if (available >= PeerMessage.MAX_FRAME_LENGTH) {
+                                throw new IOException("Line from peer too long");
+                            }
+                            ensureCapacity(available + 1);
+                            break;
+                        }
+                        String line = new String(readBuffer.array(), start, end - start, StandardCharsets.UTF_8);
+                        start = end + 1;
+                        message = handleLine(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+                        if (message == null) {
+                            continue;
+                        }
+                    }
+
+                    if (!queue.offer(message, senderIp)) {
+                        held = message;
+                        key.interestOps(0);
+                        pause(this);
+                        return false;
+                    }
+                }
+            } finally {
+                readBuffer.flip();
+                readBuffer.position(start);
+                readBuffer.compact();
+            }
+            return true;
+        }
+
+        // The first line negotiates the connection, later ones are legacy messages. Returns the message to queue, if any.
+        private PeerMessage handleLine(String line) throws IOException {
+            if (!negotiated) {
+                negotiated = true;
+                if (line.equals(PeerMessage.BINARY_HELLO)) {
+                    binary = true;
+                    if (channel.write(ByteBuffer.wrap(new byte[] { (byte) PeerMessage.BINARY_ACK })) != 1) {
+                        throw new IOException("Could not acknowledge the binary hello");
+                    }
+                    return null;
+                }
+            }
+            PeerMessage message = PeerMessage.parseTextLine(line);
+            if (message == null) {
+                Log.debug("Message from peer: {}", line);
+            }
+            return message;
+        }
+
+        // A pong is a few bytes on a connection the sender only ever has one ping outstanding on, so the socket's
+        // send buffer always has room for it
+        private void answer(PeerMessage ping) throws IOException {
+            FramePool.Frame pong = FramePool.encode(ping.pong(), 1);
+            try {
+                ByteBuffer view = pong.view();
+                channel.write(view);
+                if (view.hasRemaining()) {
+                    throw new IOException("Could not answer a ping");
+                }
+            } finally {
+                pong.release();
+            }
+        }
+
+        private int indexOf(char c, int from) {
+            for (int i = from; i < readBuffer.position(); i++) {
+                if (readBuffer.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Sized for what is still unread, process() compacts the buffer right after
+        private void ensureCapacity(int needed) {
+            if (readBuffer.capacity() < needed) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        void fail(Exception e) {
+            if (!closed) {
+                Log.warn("Peer handler exception: {}", e.getMessage());
+            }
+            close();
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    // One selector shared by the inbound connections of several peers
+    private static class IoThread extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoThread(String name) {
+            super(name);
+            setDaemon(true);
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open a selector", e);
+            }
+        }
+
+        // Run on this thread, where the selector's keys may be changed without racing select()
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.error("Peer I/O selector failed: {}", e);
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.warn("Peer I/O task failed: {}", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof InboundReader) {
+                        InboundReader reader = (InboundReader) key.attachment();
+                        try {
+                            reader.accept();
+                        } catch (IOException e) {
+                            if (!reader.closed) {
+                                reader.acceptFailed(key, e);
+                            }
+                        }
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.read();
+                        } catch (IOException | RuntimeException e) {
+                            connection.fail(e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only journal of the messages a peer sent and received and of its membership, so a restarted peer
+// gets back its peer list and what it has seen, and can resend recent messages to peers that missed them.
+// Records go into memory-mapped segment files of a fixed size, named after their first sequence number;
+// when one fills up the next is started and the oldest beyond maxSegments deleted. Every new segment starts
+// with a membership snapshot, so the JOIN/LEAVE deltas that survive the deletion always have one to apply to.
+// Record layout: [int length][int crc32][byte kind][long seq][long timestampMillis][body], length covers
+// everything after the crc. The length is written last, so a record torn by a crash reads as the journal's end.
+// Enabled with -Dpeer.journalDir=<dir>, one subdirectory per peer port. Tuned with -Dpeer.journal.segmentBytes
+// (default 4 MB), -Dpeer.journal.maxSegments (default 4) and -Dpeer.journal.fsync=always|interval|never
+// (default interval, every -Dpeer.journal.fsyncIntervalMs, default 1000).
+public class Journal {
+    public static final byte SENT = 1; // Originated here, body is the message frame
+    public static final byte RECEIVED = 2; // First copy of a message from another peer, body is the frame
+    public static final byte MEMBERSHIP = 3; // A membership snapshot or one JOIN/LEAVE delta, body is text
+
+    private static final int HEADER_LENGTH = 4 + 4; // Length, crc
+    private static final int RECORD_PREFIX = 1 + 8 + 8; // Kind, sequence, timestamp
+    private static final String SUFFIX = ".journal";
+
+    // Durability against throughput: force every append, force the dirty journals periodically, or leave it to the OS
+    public enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("peer.journal.fsyncIntervalMs", 1000);
+    private static final Set<Journal> openJournals = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Across all journals in the JVM, published through Metrics
+    private static final LongAdder appends = Metrics.counter("journal.appends");
+    private static final LongAdder bytesAppended = Metrics.counter("journal.bytes");
+    private static final LongAdder forces = Metrics.counter("journal.forces");
+    private static final LatencyHistogram forceLatency = Metrics.histogram("journal.forceLatency");
+
+    static {
+        syncer.scheduleWithFixedDelay(() -> {
+            for (Journal journal : openJournals) {
+                if (journal.policy == FsyncPolicy.INTERVAL) {
+                    journal.sync();
+                }
+            }
+        }, FSYNC_INTERVAL_MS, FSYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    interface Visitor {
+        // Return false to stop reading
+        boolean visit(byte kind, long seq, long timestamp, ByteBuffer body) throws IOException;
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final FsyncPolicy policy;
+    private final List<Segment> segments = new ArrayList<>(); // Oldest first, the last one is written to
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(256);
+    private long nextSeq = 1;
+    private long lastTimestamp; // Of the newest record, 0 while the journal is empty
+    private boolean dirty; // Appended to since the last force
+    private boolean closed;
+    private Supplier<String> membershipSnapshot; // Written first in every new segment, once set
+
+    public Journal(Path directory, int segmentBytes, int maxSegments, FsyncPolicy policy) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.policy = policy;
+
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(files::add);
+        }
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            segments.add(segment);
+            segment.end = scan(segment.buffer, segment.buffer.capacity(), (kind, seq, timestamp, body) -> {
+                nextSeq = seq + 1;
+                lastTimestamp = timestamp;
+                return true;
+            });
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+        Log.info("Journal {} opened at sequence {} with {} segments", directory, nextSeq, segments.size());
+        openJournals.add(this);
+    }
+
+    // The journal configured by system properties for the peer on this port, or null when journaling is off
+    public static Journal forPeer(int port) throws IOException {
+        String journalDir = System.getProperty("peer.journalDir");
+        if (journalDir == null) {
+            return null;
+        }
+        return new Journal(Paths.get(journalDir, "peer-" + port),
+                Integer.getInteger("peer.journal.segmentBytes", 4 << 20),
+                Integer.getInteger("peer.journal.maxSegments", 4),
+                fsyncPolicy(System.getProperty("peer.journal.fsync", "interval")));
+    }
+
+    private static FsyncPolicy fsyncPolicy(String name) {
+        try {
+            return FsyncPolicy.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            Log.warn("Unknown -Dpeer.journal.fsync={}, expected always, interval or never; using interval", name);
+            return FsyncPolicy.INTERVAL;
+        }
+    }
+
+    // Where new segments get their opening MEMBERSHIP snapshot from, the text restoreMembership reads back
+    public synchronized void setMembershipSnapshot(Supplier<String> membershipSnapshot) {
+        this.membershipSnapshot = membershipSnapshot;
+    }
+
+    // Record a message as its binary frame body
+    public synchronized long append(byte kind, PeerMessage message) throws IOException {
+        encodeBuffer = message.encode(encodeBuffer, encoder);
+        ByteBuffer body = encodeBuffer.duplicate();
+        body.position(4); // Frame length prefix, the record has its own
+        return append(kind, body);
+    }
+
+    public synchronized long append(byte kind, String text) throws IOException {
+        return append(kind, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public synchronized long append(byte kind, ByteBuffer body) throws IOException {
+        if (closed) {
+            throw new IOException("Journal " + directory + " is closed");
+        }
+        int recordLength = RECORD_PREFIX + body.remaining();
+        if (HEADER_LENGTH + recordLength > segmentBytes) {
+            throw new IOException("Journal record of " + recordLength + " bytes is larger than a segment");
+        }
+        Segment active = segments.get(segments.size() - 1);
+        if (active.buffer.capacity() - active.end < HEADER_LENGTH + recordLength) {
+            active = roll();
+            writeSnapshot(active, recordLength);
+        }
+        return write(active, kind, body, recordLength);
+    }
+
+    // Open a new segment with the current membership, leaving room for the record that rolled it
+    private void writeSnapshot(Segment segment, int reservedLength) {
+        if (membershipSnapshot == null) {
+            return;
+        }
+        ByteBuffer snapshot = ByteBuffer.wrap(membershipSnapshot.get().getBytes(StandardCharsets.UTF_8));
+        int snapshotLength = RECORD_PREFIX + snapshot.remaining();
+        if (2 * HEADER_LENGTH + snapshotLength + reservedLength > segment.buffer.capacity()) {
+            Log.warn("Membership snapshot of {} bytes doesn't fit a journal segment, {} starts without one", snapshotLength, segment.path);
+            return;
+        }
+        write(segment, MEMBERSHIP, snapshot, snapshotLength);
+    }
+
+    private long write(Segment segment, byte kind, ByteBuffer body, int recordLength) {
+        long seq = nextSeq++;
+        lastTimestamp = System.currentTimeMillis();
+        segment.write(kind, seq, lastTimestamp, body, recordLength);
+        appends.increment();
+        bytesAppended.add(HEADER_LENGTH + recordLength);
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            force(segment);
+        } else {
+            dirty = true;
+        }
+        return seq;
+    }
+
+    // Visit every record written at or after the given time, oldest first. Runs alongside appends:
+    // it reads what had been written when it started, through views of the mapped segments.
+    public void read(long sinceTimestamp, Visitor visitor) throws IOException {
+        List<ByteBuffer> views = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                ByteBuffer view = segment.buffer.duplicate();
+                view.limit(segment.end);
+                views.add(view);
+            }
+        }
+        boolean[] stopped = { false };
+        for (ByteBuffer view : views) {
+            scan(view, view.limit(), (kind, seq, timestamp, body) -> {
+                if (timestamp >= sinceTimestamp && !visitor.visit(kind, seq, timestamp, body)) {
+                    stopped[0] = true;
+                    return false;
+                }
+                return true;
+            });
+            if (stopped[0]) {
+                return;
+            }
+        }
+    }
+
+    public synchronized long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    // Force the written part of the active segment to disk if anything was appended since the last force
+    public synchronized void sync() {
+        if (dirty) {
+            force(segments.get(segments.size() - 1));
+        }
+    }
+
+    // Appends fail from here on, so nothing lands after the final sync
+    public synchronized void close() {
+        openJournals.remove(this);
+        closed = true;
+        if (policy != FsyncPolicy.NEVER) {
+            sync();
+        }
+    }
+
+    private void force(Segment segment) {
+        long start = System.nanoTime();
+        segment.buffer.force();
+        forces.increment();
+        forceLatency.recordSince(start);
+        dirty = false;
+    }
+
+    // Start a new segment at the next sequence number, dropping the oldest beyond the limit
+    private Segment roll() throws IOException {
+        if (!segments.isEmpty() && policy != FsyncPolicy.NEVER) {
+            force(segments.get(segments.size() - 1)); // A full segment is never written again, settle it now
+        }
+        Segment segment = Segment.create(directory.resolve(String.format("%020d%s", nextSeq, SUFFIX)), segmentBytes);
+        segments.add(segment);
+
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            Files.deleteIfExists(oldest.path); // The mapping goes away once its buffer is collected
+        }
+        return segment;
+    }
+
+    // Walk the records from the start of the buffer up to end, stopping at the first empty or damaged one.
+    // Returns the position after the last good record, where the next append goes.
+    private static int scan(ByteBuffer buffer, int end, Visitor visitor) throws IOException {
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (end - position >= HEADER_LENGTH) {
+            int recordLength = buffer.getInt(position);
+            if (recordLength < RECORD_PREFIX || recordLength > end - position - HEADER_LENGTH) {
+                break; // Zero fill after the last record, or a length that was torn
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.limit(position + HEADER_LENGTH + recordLength).position(position + HEADER_LENGTH);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                Log.warn("Journal record at offset {} is damaged, ignoring the rest of its segment", position);
+                break;
+            }
+
+            byte kind = record.get();
+            long seq = record.getLong();
+            long timestamp = record.getLong();
+            position += HEADER_LENGTH + recordLength;
+            if (!visitor.visit(kind, seq, timestamp, record.slice())) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private volatile int end; // Where the next record goes, readers stop here
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size)); // Grows the file, zero filled
+            }
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            }
+        }
+
+        void write(byte kind, long seq, long timestamp, ByteBuffer body, int recordLength) {
+            int start = end;
+            ByteBuffer record = buffer.duplicate();
+            record.position(start + HEADER_LENGTH);
+            record.put(kind).putLong(seq).putLong(timestamp).put(body);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer written = buffer.duplicate();
+            written.limit(start + HEADER_LENGTH + recordLength).position(start + HEADER_LENGTH);
+            crc.update(written);
+            buffer.putInt(start + 4, (int) crc.getValue());
+            buffer.putInt(start, recordLength);
+            end = start + HEADER_LENGTH + recordLength;
+        }
+    }
+}
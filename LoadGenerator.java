@@ -0,0 +1,196 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless driver that runs many PeerClient10C peers in one JVM against a local Server10B
+// and pushes a scripted message workload through the real BROADCAST/FORWARD paths.
+// Usage: java LoadGenerator [peers] [messagesPerSecond] [durationSeconds]
+//   -Dload.serverPort=<port>     rendezvous port (default 5950)
+//   -Dload.startServer=false     use a Server10B that is already running instead of starting one
+//   -Dload.serverNodes=<n>       run a sharded cluster of n nodes on consecutive ports from load.serverPort (default 1),
+//                                peers register with the nodes round-robin and get redirected to their owner
+//   -Dload.firstPeerPort=<port>  peers listen on consecutive ports from here (default 21000)
+//   -Dload.verbose=true          keep the peers' and server's console output
+//   -Dload.dumpMetrics=true      print every Metrics counter and histogram after the report
+//   -Dpeer.mode=gossip           peers use push-pull gossip instead of the coin-flip protocol (see Gossip)
+public class LoadGenerator {
+    private static final long DRAIN_MS = 3000; // Time after the last message for forward chains to finish
+
+    // Delivery bookkeeping, filled by the peers' broadcast listeners
+    private final Map<Long, AtomicInteger> deliveriesPerMessage = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Long> deliveryLatencies = new ConcurrentLinkedQueue<>();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong originated = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int peerCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int messagesPerSecond = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int durationSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        int status = 1;
+        try {
+            new LoadGenerator().run(peerCount, messagesPerSecond, durationSeconds);
+            status = 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            System.exit(status); // The joiner and originator pools aren't daemons, a failed run would leave them waiting
+        }
+    }
+
+    private void run(int peerCount, int messagesPerSecond, int durationSeconds) throws Exception {
+        int serverPort = Integer.getInteger("load.serverPort", 5950);
+        int serverNodes = Integer.getInteger("load.serverNodes", 1);
+        int firstPeerPort = Integer.getInteger("load.firstPeerPort", 21000);
+        boolean verbose = Boolean.getBoolean("load.verbose");
+        Metrics.expose();
+
+        PrintStream console = System.out;
+        if (!verbose) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        try {
+            if (Boolean.parseBoolean(System.getProperty("load.startServer", "true"))) {
+                List<String> clusterNodes = new ArrayList<>();
+                for (int i = 0; serverNodes > 1 && i < serverNodes; i++) {
+                    clusterNodes.add("127.0.0.1:" + (serverPort + i));
+                }
+                for (int i = 0; i < serverNodes; i++) {
+                    Server10B node = new Server10B(serverPort + i, clusterNodes);
+                    Thread server = new Thread(node::run, "load-server-" + i);
+                    server.setDaemon(true);
+                    server.start();
+                }
+                for (int i = 0; i < serverNodes; i++) {
+                    Loopback.waitForPort(serverPort + i);
+                }
+            }
+
+            // Register every peer, the server releases them in batches
+            long joinStart = System.nanoTime();
+            List<PeerClient10C> peers = joinPeers(peerCount, firstPeerPort, serverPort, serverNodes);
+            long joinNanos = System.nanoTime() - joinStart;
+            console.printf("Joined %d peers in %.1f ms (%.0f registrations/s)%n",
+                    peers.size(), joinNanos / 1e6, peers.size() / (joinNanos / 1e9));
+
+            // Drive the workload: each tick a random peer originates one message
+            long sentBefore = PeerConnectionPool.getMessagesSent();
+            ExecutorService originators = Executors.newFixedThreadPool(32);
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+            AtomicLong sequence = new AtomicLong();
+            long periodNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+
+            long workloadStart = System.nanoTime();
+            ticker.scheduleAtFixedRate(() -> {
+                PeerClient10C origin = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+                long id = sequence.incrementAndGet();
+                deliveriesPerMessage.put(id, new AtomicInteger());
+                originated.incrementAndGet();
+                String payload = "load:" + id + ":" + System.nanoTime();
+                originators.execute(() -> origin.sendMessage(payload));
+            }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            ticker.shutdownNow();
+            long workloadNanos = System.nanoTime() - workloadStart;
+            Thread.sleep(DRAIN_MS);
+            originators.shutdown();
+
+            report(console, workloadNanos, PeerConnectionPool.getMessagesSent() - sentBefore, peers.get(0).getPeerList().size());
+            if (Boolean.getBoolean("load.dumpMetrics")) {
+                console.print(Metrics.render());
+            }
+
+            for (PeerClient10C peer : peers) {
+                peer.close();
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private List<PeerClient10C> joinPeers(int peerCount, int firstPeerPort, int serverPort, int serverNodes) throws Exception {
+        ExecutorService joiners = Executors.newFixedThreadPool(Math.min(peerCount, 256));
+        List<Future<PeerClient10C>> joins = new ArrayList<>(peerCount);
+        for (int i = 0; i < peerCount; i++) {
+            int peerPort = firstPeerPort + i;
+            int seedPort = serverPort + i % serverNodes;
+            joins.add(joiners.submit(() -> {
+                PeerClient10C peer = new PeerClient10C(peerPort);
+                peer.setBroadcastListener(this::recordDelivery);
+                peer.join("127.0.0.1", seedPort);
+                peer.startListening();
+                return peer;
+            }));
+        }
+
+        List<PeerClient10C> peers = new ArrayList<>(peerCount);
+        for (Future<PeerClient10C> join : joins) {
+            peers.add(join.get());
+        }
+        joiners.shutdown();
+        return peers;
+    }
+
+    // Broadcast listener for every simulated peer, payloads look like "load:<id>:<originNanos>"
+    private void recordDelivery(String payload) {
+        long now = System.nanoTime();
+        String[] parts = payload.split(":");
+        if (parts.length != 3 || !parts[0].equals("load")) {
+            return;
+        }
+
+        AtomicInteger count = deliveriesPerMessage.get(Long.parseLong(parts[1]));
+        if (count != null) {
+            count.incrementAndGet();
+        }
+        deliveries.incrementAndGet();
+        deliveryLatencies.add(now - Long.parseLong(parts[2]));
+    }
+
+    private void report(PrintStream out, long workloadNanos, long messagesSent, int knownPeers) {
+        long[] latencies = new long[deliveryLatencies.size()];
+        int i = 0;
+        for (Long latency : deliveryLatencies) {
+            if (i == latencies.length) {
+                break;
+            }
+            latencies[i++] = latency;
+        }
+        Arrays.sort(latencies);
+
+        long reachedAnyone = 0;
+        for (AtomicInteger count : deliveriesPerMessage.values()) {
+            if (count.get() > 0) {
+                reachedAnyone++;
+            }
+        }
+
+        double seconds = workloadNanos / 1e9;
+        long messages = originated.get();
+        out.printf("Originated %d messages in %.1f s (%.1f msg/s)%n", messages, seconds, messages / seconds);
+        out.printf("Deliveries %d (%.1f/s), %.2f per message, %d of %d messages delivered at least once%n",
+                deliveries.get(), deliveries.get() / seconds, (double) deliveries.get() / Math.max(1, messages), reachedAnyone, messages);
+        out.printf("Coverage %.1f%% of the %d peers known to each peer, per message%n",
+                100.0 * deliveries.get() / Math.max(1, messages * (long) knownPeers), knownPeers);
+        out.printf("Amplification %.2f peer messages sent per originated message%n", (double) messagesSent / Math.max(1, messages));
+        if (latencies.length > 0) {
+            out.printf("End-to-end delivery latency p50 %.2f ms  p90 %.2f ms  p99 %.2f ms  max %.2f ms%n",
+                    Loopback.percentile(latencies, 0.50) / 1e6, Loopback.percentile(latencies, 0.90) / 1e6,
+                    Loopback.percentile(latencies, 0.99) / 1e6, latencies[latencies.length - 1] / 1e6);
+        }
+    }
+}
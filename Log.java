@@ -0,0 +1,190 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous, level-gated logging for the peer and server hot paths.
+// Callers pass a "{}" template and up to three arguments: below the configured level a call returns
+// after one comparison, otherwise it fills a preallocated slot in a lock-free ring buffer.
+// The template is only formatted, and the console only written, by the background writer thread.
+// Level comes from -Dlog.level (DEBUG, INFO, WARN, ERROR or OFF, default INFO).
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 1 << 13; // Slots in the ring, a power of two so the index is a mask
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_BATCH = 256; // Events per console write, so a busy ring still gets printed steadily
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = parseLevel(System.getProperty("log.level", "INFO"));
+
+    // Producers claim sequences with a CAS, the writer frees them by advancing consumed
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+
+    private static final LongAdder dropped = Metrics.counter("log.dropped"); // Events lost because the ring was full
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+        }
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isDebugEnabled() {
+        return Level.DEBUG.compareTo(level) >= 0;
+    }
+
+    public static void debug(String template) { log(Level.DEBUG, template, 0, null, null, null); }
+    public static void debug(String template, Object a) { log(Level.DEBUG, template, 1, a, null, null); }
+    public static void debug(String template, Object a, Object b) { log(Level.DEBUG, template, 2, a, b, null); }
+    public static void debug(String template, Object a, Object b, Object c) { log(Level.DEBUG, template, 3, a, b, c); }
+
+    public static void info(String template) { log(Level.INFO, template, 0, null, null, null); }
+    public static void info(String template, Object a) { log(Level.INFO, template, 1, a, null, null); }
+    public static void info(String template, Object a, Object b) { log(Level.INFO, template, 2, a, b, null); }
+    public static void info(String template, Object a, Object b, Object c) { log(Level.INFO, template, 3, a, b, c); }
+
+    public static void warn(String template) { log(Level.WARN, template, 0, null, null, null); }
+    public static void warn(String template, Object a) { log(Level.WARN, template, 1, a, null, null); }
+    public static void warn(String template, Object a, Object b) { log(Level.WARN, template, 2, a, b, null); }
+    public static void warn(String template, Object a, Object b, Object c) { log(Level.WARN, template, 3, a, b, c); }
+
+    public static void error(String template) { log(Level.ERROR, template, 0, null, null, null); }
+    public static void error(String template, Object a) { log(Level.ERROR, template, 1, a, null, null); }
+    public static void error(String template, Object a, Object b) { log(Level.ERROR, template, 2, a, b, null); }
+    public static void error(String template, Object a, Object b, Object c) { log(Level.ERROR, template, 3, a, b, c); }
+
+    private static void log(Level eventLevel, String template, int argCount, Object a, Object b, Object c) {
+        if (eventLevel.compareTo(level) < 0) {
+            return;
+        }
+
+        // Claim a slot, never waiting on the writer: a full ring drops the event and counts it
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) sequence & MASK];
+        entry.level = eventLevel;
+        entry.timeMillis = System.currentTimeMillis();
+        entry.thread = Thread.currentThread().getName();
+        entry.template = template;
+        entry.argCount = argCount;
+        entry.a = a;
+        entry.b = b;
+        entry.c = c;
+        entry.published = sequence; // Volatile write, makes the fields above visible to the writer
+    }
+
+    // Wait until everything logged so far has been written, used on shutdown
+    public static void flush() {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        while (consumed < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // Drain published slots in order, writing each run of events to the console in one call
+    private static void writeLoop() {
+        StringBuilder batch = new StringBuilder(4096);
+        long next = 0;
+        while (true) {
+            Entry entry = ring[(int) next & MASK];
+            if (entry.published != next) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            int drained = 0;
+            while (entry.published == next && drained++ < MAX_BATCH) {
+                format(entry, batch);
+                entry.clear();
+                consumed = ++next;
+                entry = ring[(int) next & MASK];
+            }
+
+            // Looked up per batch so callers that swap System.out (benchmarks, load runs) still silence us
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder out) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.timeMillis), out);
+        out.append(' ').append(entry.level);
+        if (entry.level.name().length() == 4) {
+            out.append(' ');
+        }
+        out.append(" [").append(entry.thread).append("] ");
+
+        String template = entry.template;
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while (arg < entry.argCount && (placeholder = template.indexOf("{}", start)) >= 0) {
+            out.append(template, start, placeholder).append(entry.arg(arg++));
+            start = placeholder + 2;
+        }
+        out.append(template, start, template.length()).append(System.lineSeparator());
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    // One preallocated slot, reused every CAPACITY events
+    private static class Entry {
+        private volatile long published = -1;
+        private Level level;
+        private long timeMillis;
+        private String thread;
+        private String template;
+        private int argCount;
+        private Object a;
+        private Object b;
+        private Object c;
+
+        private Object arg(int index) {
+            return index == 0 ? a : index == 1 ? b : c;
+        }
+
+        // Drop references so logged objects don't stay reachable from the ring
+        private void clear() {
+            template = null;
+            thread = null;
+            a = null;
+            b = null;
+            c = null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.IOException;
+import java.net.Socket;
+
+// Helpers shared by the in-process drivers that run real servers and peers on loopback, Benchmarks and LoadGenerator
+class Loopback {
+    private Loopback() {
+    }
+
+    // Block until something accepts connections on the local port, such as a Server10B started on another thread
+    static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server10B did not start on port " + port);
+    }
+
+    // Nearest-rank percentile of an ascending array
+    static long percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -1,28 +1,39 @@
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class MainApp {
-public static void abc(String x, int y)
+public static CompletableFuture<Void> abc(String x, int y)
 {
       // Example query
         String query = x;
         int numResults = y;
 
-        // Perform the search using GoogleSearchService
-        SearchResult result = GoogleSearchService.performSearch(query, numResults);
+        // Queue the search with GoogleSearchService, the results are logged once they arrive
+        // so the calling peer thread never waits on the HTTP call or the rate limiter.
+        // A cached result runs this callback right away on the peer's inbound worker, so it only hands lines to Log.
+        return GoogleSearchService.performSearchAsync(query, numResults).handle((result, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                Log.warn("Search for \"{}\" failed: {}", query, cause.getMessage());
+                return null;
+            }
 
-        // Display the time taken for the search
-        System.out.println("Time taken: " + result.getTimeTaken() + " ms");
+            // Display the time taken for the search
+            Log.info("Time taken: {} ms", result.getTimeTaken());
 
-        // Display the search results (URLs)
-        List<String> urls = result.getUrls();
-        if (!urls.isEmpty()) {
-            System.out.println("Search Results:");
-            for (String url : urls) {
-                System.out.println(url);
+            // Display the search results (URLs)
+            List<String> urls = result.getUrls();
+            if (!urls.isEmpty()) {
+                Log.info("Search Results:");
+                for (String url : urls) {
+                    Log.info("{}", url);
+                }
+            } else {
+                Log.info("No results found.");
             }
-        } else {
-            System.out.println("No results found.");
-        }
+            return null;
+        });
 
 }
     public static void main(String[] args) {
@@ -30,7 +41,7 @@ public static void abc(String x, int y)
 String x="Pakistan zindabad";
 int y=10;
 
-abc(x,y);
+abc(x,y).join();
 
     }
 }
@@ -0,0 +1,178 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+// Process-wide counters, gauges and latency histograms for the server, the peers and the search path.
+// Call sites keep what counter() and histogram() return in a static field, so recording is a plain add.
+// expose() publishes everything as JMX attributes and, with -Dmetrics.port=<n>, as text on http://127.0.0.1:<n>/metrics
+public class Metrics {
+    private static final String OBJECT_NAME = "peernet:type=Metrics";
+    private static final double[] QUANTILES = { 0.50, 0.90, 0.99, 0.999 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    // Sorted so the output is stable from one scrape to the next
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    private static boolean exposed;
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    // A value owned elsewhere (cache hits, queue depth) read whenever the metrics are
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    // Register the JMX bean and start the HTTP endpoint if a port was configured, later calls do nothing
+    public static synchronized void expose() {
+        if (exposed) {
+            return;
+        }
+        exposed = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Log.warn("Could not register metrics with JMX: {}", e.getMessage());
+        }
+
+        int port = Integer.getInteger("metrics.port", 0);
+        if (port > 0) {
+            try {
+                startHttpEndpoint(port);
+            } catch (IOException e) {
+                Log.warn("Could not start metrics endpoint on port {}: {}", port, e.getMessage());
+            }
+        }
+    }
+
+    // Loopback only, metrics are scraped by a local agent rather than served to the network
+    private static void startHttpEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(null); // The server's own dispatcher thread is plenty for a scrape now and then
+        server.start();
+        Log.info("Serving metrics on http://127.0.0.1:{}/metrics", port);
+    }
+
+    // Every metric as a flat name/value pair, histograms as count, mean, max and quantiles in milliseconds
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".meanMs", histogram.getMeanNanos() / nanosPerMilli);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values.put(name + "." + QUANTILE_NAMES[i] + "Ms", histogram.valueAtQuantileMillis(QUANTILES[i]));
+            }
+            values.put(name + ".maxMs", histogram.getMaxNanos() / nanosPerMilli);
+        }
+        return values;
+    }
+
+    // One "name value" line per metric, dots turned into underscores for scrapers that expect that
+    public static String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            text.append(value.getKey().replace('.', '_')).append(' ');
+            if (value.getValue() instanceof Double) {
+                text.append(String.format("%.3f", value.getValue().doubleValue()));
+            } else {
+                text.append(value.getValue());
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    // Read-only view for JConsole and JMX exporters, the attribute set grows as metrics get registered
+    private static class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+                String type = value.getValue().getClass().getName();
+                attributes.add(new MBeanAttributeInfo(value.getKey(), type, value.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Peer network and search metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -1,172 +1,542 @@
 import java.io.*;
 import java.net.*;
-import java.time.Duration;
-import java.time.LocalDateTime;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class PeerClient10C {
     private static final String SERVER_ADDRESS = "127.0.0.1"; // Address of the central server
     private static final int SERVER_PORT = 5000; // Port of the central server
-    private static List<ClientInfo> peerList = new ArrayList<>();
-    private static int peerServerPort; // Port on which this client listens for peers
+    private static final int MAX_REDIRECTS = 3; // A sharded server redirects once, more means the nodes disagree
+    private static final long MIN_REJOIN_BACKOFF_MS = 500;
+    private static final long MAX_REJOIN_BACKOFF_MS = 10_000;
+    private static final int CATCHUP_PEERS = 2; // Peers a restarted peer asks for what it missed
+    private static final long CATCHUP_SKEW_MS = 5000; // Peers' clocks differ, ask for a little more, duplicates are dropped
+    private static final int MAX_CATCHUP_MESSAGES = 1000; // Resent in answer to one catch-up request
+    private static final ScheduledExecutorService forwardScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "forward-scheduler"); // Only waits out delays, the send runs on the pool
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Shared by every peer in the JVM, published through Metrics
+    private static final LatencyHistogram joinLatency = Metrics.histogram("peer.joinLatency"); // Registration sent to client list received
+    private static final LongAdder originated = Metrics.counter("peer.originated");
+    private static final LongAdder messagesReceived = Metrics.counter("peer.messagesReceived");
+    private static final LongAdder duplicatesDropped = Metrics.counter("peer.duplicatesDropped");
+    private static final LongAdder broadcastsDelivered = Metrics.counter("peer.broadcastsDelivered");
+    private static final LongAdder forwarded = Metrics.counter("peer.forwarded");
+    private static final LongAdder hopLimitReached = Metrics.counter("peer.hopLimitReached");
+    private static final LongAdder catchUpSent = Metrics.counter("peer.catchUpSent");
+
+    // Per-peer state, so many simulated peers can share one JVM
+    private final PeerTable peerTable = new PeerTable(); // Kept current by the server's membership deltas
+    private final int peerServerPort; // Port on which this client listens for peers
+    private final SeenMessages seenMessages = new SeenMessages(100_000, 10, TimeUnit.MINUTES); // Duplicate suppression
+    private final PeerConnectionPool connectionPool = new PeerConnectionPool(); // Long-lived connections to peers
+    private final Random random = new Random();
+    private volatile Consumer<String> broadcastListener = payload -> MainApp.abc(payload, 10); // Runs for every broadcast delivered here
+    private final Gossip gossip; // Answers gossip frames in either mode, originates them in gossip mode
+    private final boolean gossipMode = "gossip".equals(System.getProperty("peer.mode", "legacy")); // Coin flip otherwise
+    private final InboundQueue inboundQueue = InboundQueue.fromProperties(new PeerHandler()); // Handled on the shared worker pool
+    private InboundReader inboundReader; // Accepts and decodes peer connections once listening
+    private volatile Socket membershipSocket; // Open while subscribed to membership deltas
+    private String seedAddress; // Server the peer was started with, used again to rejoin
+    private int seedPort;
+    private volatile String registeredWith; // "host:port" of the node that accepted the last registration
+    private volatile boolean closed;
+    private final Journal journal; // Null unless -Dpeer.journalDir is set
+    private long resumeFrom; // Time of the newest record replayed at startup, 0 for a fresh peer
+
+    public PeerClient10C(int peerServerPort) {
+        this.peerServerPort = peerServerPort;
+        this.gossip = new Gossip(peerServerPort, peerTable::snapshot, connectionPool, seenMessages, message -> deliver(message.getPayload()));
+
+        Journal opened = null;
+        try {
+            opened = Journal.forPeer(peerServerPort);
+        } catch (IOException e) {
+            Log.warn("Running without a journal, it failed to open: {}", e.getMessage());
+        }
+        this.journal = opened;
+        if (journal != null) {
+            replayJournal();
+            journal.setMembershipSnapshot(this::membershipSnapshot);
+        }
+    }
 
     public static void main(String[] args) {
-        MainApp obj = new MainApp();
-        if (args.length != 1) {
-            System.out.println("Usage: java PeerClient <port>");
+        if (args.length != 1 && args.length != 3) {
+            System.out.println("Usage: java PeerClient <port> [serverAddress serverPort]");
             return;
         }
 
-        peerServerPort = Integer.parseInt(args[0]); // Client will bind to this port
+        PeerClient10C client = new PeerClient10C(Integer.parseInt(args[0])); // Client will bind to this port
+        String serverAddress = args.length == 3 ? args[1] : SERVER_ADDRESS;
+        int serverPort = args.length == 3 ? Integer.parseInt(args[2]) : SERVER_PORT;
+        Metrics.expose();
 
         try {
-            // Record the time right before sending the request to the server
-            LocalDateTime requestSentTime = LocalDateTime.now();
+            client.join(serverAddress, serverPort);
+            client.startListening();
+            client.runConsole();
+            client.close();
+        } catch (IOException ex) {
+            System.out.println("Error: " + ex.getMessage());
+        }
+    }
+
+    // Steps 1-4: register with the central server and read the membership, then keep following its deltas.
+    // With -Dpeer.staticMembership=true the peer registers the old way and only ever knows its batch.
+    // A sharded server may redirect the peer to the node that owns it; if that node's stream ends later
+    // the peer registers again through the server it was started with.
+    public void join(String serverAddress, int serverPort) throws IOException {
+        this.seedAddress = serverAddress;
+        this.seedPort = serverPort;
+        register(serverAddress, serverPort);
+    }
+
+    // Register, following REDIRECT replies until a node accepts the registration
+    private void register(String serverAddress, int serverPort) throws IOException {
+        // Record the time right before sending the request to the server
+        long requestSentTime = System.nanoTime();
+
+        String node = serverAddress + ":" + serverPort;
+        String redirect = registerWith(serverAddress, serverPort, requestSentTime);
+        for (int redirects = 1; redirect != null; redirects++) {
+            if (redirects > MAX_REDIRECTS) {
+                throw new IOException("Too many redirects, last one to " + redirect);
+            }
+            InetSocketAddress owner = ClusterLink.toSocketAddress(redirect);
+            node = redirect;
+            redirect = registerWith(owner.getHostString(), owner.getPort(), requestSentTime);
+        }
+        registeredWith = node;
+    }
+
+    // One registration attempt, returns the "host:port" the server redirected to or null once registered
+    private String registerWith(String serverAddress, int serverPort, long requestSentTime) throws IOException {
+        boolean subscribe = !Boolean.getBoolean("peer.staticMembership");
 
-            // Step 1: Connect to the central server
-            Socket serverSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            System.out.println("Connected to the central server");
+        // Step 1: Connect to the central server
+        Socket serverSocket = new Socket(serverAddress, serverPort);
+        boolean following = false;
+        try {
+            Log.info("Connected to the central server {}:{}", serverAddress, serverPort);
 
             // Send this client's listening port to the server
             PrintWriter serverOut = new PrintWriter(serverSocket.getOutputStream(), true);
-            serverOut.println("PORT:" + peerServerPort); // Send something like "PORT:6001"
-            System.out.println("Sent listening port " + peerServerPort + " to the server");
+            serverOut.println((subscribe ? "SUBSCRIBE:" : "PORT:") + peerServerPort); // Send something like "SUBSCRIBE:6001"
+            Log.info("Sent listening port {} to the server", peerServerPort);
 
             // Step 2: Read the broadcasted client list from the server
             BufferedReader input = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
             String clientList;
-            System.out.println("Waiting to receive client list from server...");
+            Log.info("Waiting to receive client list from server...");
 
-            // Record the time when the client receives the client list
-            LocalDateTime listReceivedTime = null;
-
-            // Read until the list broadcast starts
+            // Read until the list broadcast starts, "Membership: <version>" for subscribers
+            long version = 0;
             while ((clientList = input.readLine()) != null) {
-                System.out.println(clientList);
-                if (clientList.startsWith("Connected Clients:")) {
-                    // Mark the time when the client list is received
-                    listReceivedTime = LocalDateTime.now();
+                Log.debug(clientList);
+                if (clientList.startsWith("REDIRECT:")) {
+                    String owner = clientList.substring("REDIRECT:".length()).trim();
+                    Log.info("Redirected to rendezvous node {}", owner);
+                    return owner;
+                }
+                if (clientList.startsWith("Connected Clients:") || clientList.startsWith("Membership:")) {
+                    // Step 3: Record the time between request and list received
+                    joinLatency.recordSince(requestSentTime);
+                    if (clientList.startsWith("Membership:")) {
+                        version = Long.parseLong(clientList.substring("Membership:".length()).trim());
+                        following = true;
+                    }
                     break;
                 }
             }
-
-            // Step 3: Calculate the time difference between request and list received for each client
-            if (listReceivedTime != null) {
-                Duration timeDiff = Duration.between(requestSentTime, listReceivedTime);
-                System.out.println("Time difference between sending request and receiving the list: " + timeDiff.toMillis() + " milliseconds");
+            if (clientList == null) {
+                throw new EOFException("Server closed the connection before sending the client list");
             }
 
             // Step 4: Parse the client list received from the server
-            int idCounter = 1;
-            while ((clientList = input.readLine()) != null && !clientList.isEmpty()) {
-                String[] parts = clientList.split(":");
-                String peerIp = parts[0];
-                int peerPort = Integer.parseInt(parts[1]);
-                peerList.add(new ClientInfo(idCounter++, peerIp, peerPort)); // Assign each peer a unique ID
-            }
-            System.out.println("Client list received. Ready to connect to peers.");
+            peerTable.reset(version, readPeerList(input));
+            recordMembershipSnapshot();
+            Log.info("Client list received. Ready to connect to peers.");
 
-            // Step 5: Start a thread to listen for incoming peer connections on the specified port
-            ServerSocket peerServerSocket = new ServerSocket(peerServerPort);
-            System.out.println("Listening for peer connections on port " + peerServerPort);
-
-            new Thread(() -> {
-                try {
-                    while (true) {
-                        Socket peerSocket = peerServerSocket.accept();
-                        System.out.println("Connected to peer: " + peerSocket.getInetAddress());
+            if (following) {
+                membershipSocket = serverSocket;
+                followMembership(input);
+            }
+            return null;
+        } finally {
+            if (!following) {
+                serverSocket.close();
+            }
+        }
+    }
 
-                        new Thread(new PeerHandler(peerSocket)).start();
+    // Apply JOIN/LEAVE deltas as the server streams them, until it or we close the connection
+    private void followMembership(BufferedReader input) {
+        Thread follower = new Thread(() -> {
+            try {
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (peerTable.apply(line)) {
+                        record(Journal.MEMBERSHIP, line);
+                        Log.debug("Membership {} applied, {} peers known", line, peerTable.size());
+                    } else {
+                        Log.debug("Ignoring membership line: {}", line);
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
-            }).start();
-
-            // Step 6: Allow the user to generate a random number and decide to broadcast or forward the message
-            Scanner scanner = new Scanner(System.in);
-            String message;
-            Random random = new Random();
+                Log.warn("Server closed the membership stream at version {}", peerTable.getVersion());
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.warn("Membership stream failed: {}", e.getMessage());
+                }
+            }
+            rejoin();
+        }, "membership-" + peerServerPort);
+        follower.setDaemon(true);
+        follower.start();
+    }
 
-            while (true) {
-                System.out.println("\nList of peers:");
-                for (ClientInfo peer : peerList) {
-                    System.out.println(peer.getId() + ". " + peer.getIpAddress() + ":" + peer.getPort());
+    // The membership stream was lost: register again with backoff, keeping the current table meanwhile.
+    // Attempts alternate between the seed and the node the peer was last registered with, so a peer whose
+    // seed is down still gets back to the node that owns it.
+    private void rejoin() {
+        List<String> nodes = new ArrayList<>();
+        nodes.add(seedAddress + ":" + seedPort);
+        if (registeredWith != null && !nodes.contains(registeredWith)) {
+            nodes.add(registeredWith);
+        }
+        long backoffMs = MIN_REJOIN_BACKOFF_MS;
+        for (int attempt = 0; !closed; attempt++) {
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            String node = nodes.get(attempt % nodes.size());
+            try {
+                InetSocketAddress address = ClusterLink.toSocketAddress(node);
+                register(address.getHostString(), address.getPort());
+                Log.info("Rejoined with {} peers known", peerTable.size());
+                if (closed) {
+                    membershipSocket.close(); // close() ran while registering
                 }
+                return;
+            } catch (IOException e) {
+                Log.warn("Rejoin through {} failed: {}, retrying in {} ms", node, e.getMessage(), backoffMs);
+                backoffMs = Math.min(backoffMs * 2, MAX_REJOIN_BACKOFF_MS);
+            }
+        }
+    }
+
+    // Step 5: Start a thread to listen for incoming peer connections on the specified port
+    public void startListening() throws IOException {
+        inboundReader = new InboundReader(peerServerPort, inboundQueue);
+        inboundReader.start();
+        Log.info("Listening for peer connections on port {}", peerServerPort);
+
+        if (gossipMode) {
+            gossip.start(); // Digests only make sense once peers can answer on our port
+        }
+        if (resumeFrom > 0) {
+            requestCatchUp(); // Answers arrive on the port that's listening now
+        }
+    }
+
+    // Step 6: Allow the user to generate a random number and decide to broadcast or forward the message
+    private void runConsole() {
+        Scanner scanner = new Scanner(System.in);
+        String message;
+
+        while (true) {
+            System.out.println("\nList of peers:");
+            for (ClientInfo peer : peerTable.snapshot()) {
+                System.out.println(peer.getId() + ". " + peer.getIpAddress() + ":" + peer.getPort());
+            }
+
+            System.out.print("\nEnter your message (or 'exit' to quit): ");
+            message = scanner.nextLine();
+
+            if (message.equalsIgnoreCase("exit")) break;
+
+            sendMessage(message);
+        }
+    }
+
+    // Originate a message: gossip it in gossip mode, otherwise broadcast it or start a forward chain
+    // as decided by a random number
+    public void sendMessage(String message) {
+        int length = message.getBytes(StandardCharsets.UTF_8).length;
+        if (length > PeerMessage.MAX_PAYLOAD_LENGTH) {
+            Log.error("Message of {} bytes not sent, the limit is {}", length, PeerMessage.MAX_PAYLOAD_LENGTH);
+            return;
+        }
+        originated.increment();
+        if (gossipMode) {
+            record(Journal.SENT, gossip.publish(message));
+            return;
+        }
+
+        // Generate a random number
+        int randomNumber = random.nextInt(100); // Generate a random number between 0 and 99
+        Log.debug("Generated random number: {}", randomNumber);
+
+        if (randomNumber % 2 == 0) {
+            // Even number: Broadcast to all peers
+            Log.debug("Broadcasting message to all peers...");
+            PeerMessage broadcast = PeerMessage.broadcast(0, message); // 0 means no forwards
+            record(Journal.SENT, broadcast);
+            broadcastMessageToAll(broadcast);
+        } else {
+            // Odd number: Forward to a random peer with counter 0 (since it's the first forward)
+            PeerMessage forward = PeerMessage.forward(1, message); // 1 indicates the first forward
+            record(Journal.SENT, forward);
+            forwardMessageToRandomPeer(forward);
+        }
+    }
 
-                System.out.print("\nEnter your message (or 'exit' to quit): ");
-                message = scanner.nextLine();
+    // Replace what happens when a broadcast is delivered, MainApp.abc by default
+    public void setBroadcastListener(Consumer<String> broadcastListener) {
+        this.broadcastListener = broadcastListener;
+    }
 
-                if (message.equalsIgnoreCase("exit")) break;
+    // The peers known right now, an immutable snapshot
+    public List<ClientInfo> getPeerList() {
+        return peerTable.snapshot();
+    }
 
-                // Generate a random number
-                int randomNumber = random.nextInt(100); // Generate a random number between 0 and 99
-                System.out.println("Generated random number: " + randomNumber);
+    public int getPeerServerPort() {
+        return peerServerPort;
+    }
 
-                if (randomNumber % 2 == 0) {
-                    // Even number: Broadcast to all peers
-                    System.out.println("Broadcasting message to all peers...");
-                    broadcastMessageToAll("BROADCAST:0:" + message); // 0 means no forwards
+    public void close() throws IOException {
+        closed = true;
+        gossip.stop();
+        if (inboundReader != null) {
+            inboundReader.close();
+        }
+        inboundQueue.close(); // Waits for running handlers, which append to the journal
+        if (membershipSocket != null) {
+            membershipSocket.close(); // The server sees this as the peer leaving
+        }
+        if (journal != null) {
+            journal.close(); // Last, after everything that records
+        }
+        connectionPool.closeAll();
+    }
+
+    // Helper method to parse the "ip:port" lines of the client list, up to the empty line that ends it
+    static List<ClientInfo> readPeerList(BufferedReader input) throws IOException {
+        List<ClientInfo> peers = new ArrayList<>();
+        String clientList;
+        int idCounter = 1;
+        while ((clientList = input.readLine()) != null && !clientList.isEmpty()) {
+            String[] parts = clientList.split(":");
+            String peerIp = parts[0];
+            int peerPort = Integer.parseInt(parts[1]);
+            peers.add(new ClientInfo(idCounter++, peerIp, peerPort)); // Assign each peer a unique ID
+        }
+        return peers;
+    }
+
+    // Restore the membership and the messages already seen from the journal, without delivering anything again
+    private void replayJournal() {
+        long start = System.nanoTime();
+        int[] replayed = { 0 };
+        try {
+            journal.read(0, (kind, seq, timestamp, body) -> {
+                if (kind == Journal.MEMBERSHIP) {
+                    restoreMembership(StandardCharsets.UTF_8.decode(body).toString());
                 } else {
-                    // Odd number: Forward to a random peer with counter 0 (since it's the first forward)
-                    forwardMessageToRandomPeer("FORWARD:1:" + message); // 1 indicates the first forward
+                    PeerMessage message = PeerMessage.decode(body);
+                    seenMessages.markSeen(message.getDedupKey());
+                    if (message.isGossip()) {
+                        gossip.remember(message);
+                    }
                 }
-            }
+                replayed[0]++;
+                return true;
+            });
+        } catch (IOException | NumberFormatException e) {
+            Log.warn("Journal replay stopped early: {}", e.getMessage());
+        }
+        resumeFrom = journal.getLastTimestamp();
+        Log.info("Replayed {} journal records in {} ms, {} peers known", replayed[0],
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), peerTable.size());
+    }
 
-            serverSocket.close();
+    // A journaled snapshot is "<version>" followed by "ip:port" lines, a delta is the server's JOIN/LEAVE line
+    private void restoreMembership(String text) throws IOException {
+        if (text.startsWith("JOIN:") || text.startsWith("LEAVE:")) {
+            peerTable.apply(text);
+            return;
+        }
+        BufferedReader lines = new BufferedReader(new StringReader(text));
+        long version = Long.parseLong(lines.readLine());
+        peerTable.reset(version, readPeerList(lines));
+    }
 
-        } catch (IOException ex) {
-            System.out.println("Error: " + ex.getMessage());
+    private void recordMembershipSnapshot() {
+        if (journal == null) {
+            return;
         }
+        record(Journal.MEMBERSHIP, membershipSnapshot());
     }
 
-    // Helper method to broadcast a message to all peers
-    private static void broadcastMessageToAll(String message) {
-        for (ClientInfo peer : peerList) {
-            try {
-                Socket peerSocket = new Socket(peer.getIpAddress(), peer.getPort());
-                PrintWriter peerOut = new PrintWriter(peerSocket.getOutputStream(), true);
-                peerOut.println(message);
-                peerSocket.close();
-                System.out.println("Message broadcasted to peer " + peer.getId());
-            } catch (IOException e) {
-                System.out.println("Error broadcasting message to peer: " + peer.getIpAddress() + ":" + peer.getPort());
-            }
+    // "<version>" and the "ip:port" of every peer, one per line
+    private String membershipSnapshot() {
+        StringBuilder snapshot = new StringBuilder().append(peerTable.getVersion()).append('\n');
+        for (ClientInfo peer : peerTable.snapshot()) {
+            snapshot.append(peer.getIpAddress()).append(':').append(peer.getPort()).append('\n');
         }
+        return snapshot.toString();
     }
 
-    // Helper method to forward a message to a random peer with a delay and incremented counter
-    private static void forwardMessageToRandomPeer(String message) {
-        Random random = new Random();
-        int delay = 100 + random.nextInt(91); // Random delay between 100-190 milliseconds
-        ClientInfo randomPeer = peerList.get(random.nextInt(peerList.size()));
-        System.out.println("Forwarding message to random peer: " + randomPeer.getIpAddress() + ":" + randomPeer.getPort());
+    // Journal a message if journaling is on. A failing journal is logged, it never stops the messaging itself.
+    private void record(byte kind, PeerMessage message) {
+        if (journal == null || closed) {
+            return;
+        }
+        try {
+            journal.append(kind, message);
+        } catch (IOException e) {
+            Log.warn("Journal append failed: {}", e.getMessage());
+        }
+    }
 
+    private void record(byte kind, String text) {
+        if (journal == null || closed) {
+            return;
+        }
         try {
-            // Apply delay before forwarding the message
-            Thread.sleep(delay);
-            System.out.println("Delaying forwarding for " + delay + " milliseconds.");
-
-            // Increment the forward counter before forwarding the message
-            String[] messageParts = message.split(":");
-            int forwardCount = Integer.parseInt(messageParts[1]) + 1; // Increment the counter
-            String updatedMessage = "FORWARD:" + forwardCount + ":" + messageParts[2]; // Update the message with the new counter
-
-            Socket peerSocket = new Socket(randomPeer.getIpAddress(), randomPeer.getPort());
-            PrintWriter peerOut = new PrintWriter(peerSocket.getOutputStream(), true);
-            peerOut.println(updatedMessage);
-            peerSocket.close();
-            System.out.println("Message forwarded to peer " + randomPeer.getId() + " with counter: " + forwardCount);
+            journal.append(kind, text);
         } catch (IOException e) {
-            System.out.println("Error forwarding message to peer: " + randomPeer.getIpAddress() + ":" + randomPeer.getPort());
-        } catch (InterruptedException e) {
-            System.out.println("Error: Thread interrupted during sleep.");
+            Log.warn("Journal append failed: {}", e.getMessage());
+        }
+    }
+
+    // After a restart, ask a few peers for what they journaled while this peer was down
+    private void requestCatchUp() {
+        PeerMessage request = PeerMessage.catchUp(peerServerPort + ";" + (resumeFrom - CATCHUP_SKEW_MS));
+        for (ClientInfo peer : gossip.pickTargets(CATCHUP_PEERS)) {
+            Log.info("Asking peer {}:{} for the messages missed since the restart", peer.getIpAddress(), peer.getPort());
+            connectionPool.sendAsync(peer, request);
+        }
+    }
+
+    // Resend the broadcasts and gossip journaled since the time a restarted peer asks for, "<port>;<sinceMillis>"
+    private void serveCatchUp(String payload, String senderIp) {
+        int separator = payload.indexOf(';');
+        if (journal == null || separator < 0) {
+            return;
+        }
+        ClientInfo requester;
+        long since;
+        try {
+            requester = new ClientInfo(0, senderIp, Integer.parseInt(payload.substring(0, separator)));
+            since = Long.parseLong(payload.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            Log.debug("Ignoring malformed catch-up request: {}", payload);
+            return;
+        }
+
+        List<PeerMessage> missed = new ArrayList<>();
+        try {
+            journal.read(since, (kind, seq, timestamp, body) -> {
+                if (kind != Journal.MEMBERSHIP) {
+                    PeerMessage message = PeerMessage.decode(body);
+                    if (message.isBroadcast() || message.isGossip()) {
+                        missed.add(message.asRepair()); // Delivered there, not relayed again
+                    }
+                }
+                return missed.size() < MAX_CATCHUP_MESSAGES;
+            });
+        } catch (IOException e) {
+            Log.warn("Journal read for catch-up failed: {}", e.getMessage());
+        }
+        Log.info("Resending {} journaled messages to {}:{}", missed.size(), requester.getIpAddress(), requester.getPort());
+        for (PeerMessage message : missed) {
+            catchUpSent.increment();
+            connectionPool.sendAsync(requester, message);
         }
     }
 
+    // Hand a delivered broadcast or gossip payload to the listener (MainApp.abc() unless replaced)
+    private void deliver(String payload) {
+        broadcastsDelivered.increment();
+        broadcastListener.accept(payload); // Runs the search when a broadcast is received
+    }
+
+    // Helper method to broadcast a message to all peers, sent to every peer concurrently.
+    // Peers suspected dead are skipped until their suspicion runs out. Returns without waiting for the sends:
+    // an inbound worker relaying a broadcast must not wait on peers whose workers may be relaying to it.
+    private void broadcastMessageToAll(PeerMessage message) {
+        List<ClientInfo> peers = connectionPool.getHealth().live(peerTable.snapshot());
+        connectionPool.broadcast(peers, message).thenAccept(result -> {
+            for (PeerConnectionPool.PeerOutcome outcome : result.getOutcomes()) {
+                ClientInfo peer = outcome.getPeer();
+                if (outcome.isReached()) {
+                    Log.debug("Message broadcasted to peer {} in {} ms", peer.getId(), outcome.getElapsedMillis());
+                } else {
+                    Log.warn("Error broadcasting message to peer: {}:{}", peer.getIpAddress(), peer.getPort());
+                }
+            }
+            Log.debug("Broadcast reached {} of {} peers.", result.getReachedCount(), peers.size());
+        });
+    }
+
+    // Helper method to forward a message to a random peer with a delay and incremented counter.
+    // The delay runs on the scheduler so the caller returns immediately and many forwards can be pending at once.
+    private void forwardMessageToRandomPeer(PeerMessage message) {
+        int delay = 100 + random.nextInt(91); // Random delay between 100-190 milliseconds
+        ClientInfo randomPeer = choosePeer(random);
+        if (randomPeer == null) {
+            return;
+        }
+        Log.debug("Forwarding message to random peer: {}:{}", randomPeer.getIpAddress(), randomPeer.getPort());
+
+        // Increment the forward counter before forwarding the message
+        PeerMessage updatedMessage = message.nextForward();
+        int forwardCount = updatedMessage.getForwardCount();
+
+        // Apply delay before forwarding the message
+        Log.debug("Delaying forwarding for {} milliseconds.", delay);
+        forwarded.increment();
+        forwardScheduler.schedule(() -> {
+            connectionPool.sendAsync(randomPeer, updatedMessage).thenAccept(outcome -> {
+                if (outcome.isReached()) {
+                    Log.debug("Message forwarded to peer {} with counter: {}", randomPeer.getId(), forwardCount);
+                } else {
+                    Log.warn("Error forwarding message to peer: {}:{}", randomPeer.getIpAddress(), randomPeer.getPort());
+                }
+            });
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Pick the next hop from one snapshot so a concurrent LEAVE can't shrink the list under us:
+    // of two random peers not suspected dead, the one with the shorter round trip. Null when no peer is known.
+    private ClientInfo choosePeer(Random random) {
+        List<ClientInfo> peers = peerTable.snapshot();
+        if (peers.isEmpty()) {
+            Log.warn("No peers known, dropping forward");
+            return null;
+        }
+        return connectionPool.getHealth().choose(peers, random);
+    }
+
     // Helper class to handle peer information
     static class ClientInfo {
         private int id; // Unique ID for each peer
@@ -190,91 +560,100 @@ public class PeerClient10C {
         public int getPort() {
             return port;
         }
-    }
 
-    // Handler class to manage incoming peer-to-peer connections
-    static class PeerHandler implements Runnable {
-        private Socket peerSocket;
-        public MainApp obj1 = new MainApp();
-        private Random random = new Random();
+        // Peers are identified by their address so the connection pool can key on them
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientInfo)) return false;
+            ClientInfo other = (ClientInfo) o;
+            return port == other.port && ipAddress.equals(other.ipAddress);
+        }
 
-        public PeerHandler(Socket socket) {
-            this.peerSocket = socket;
+        @Override
+        public int hashCode() {
+            return 31 * ipAddress.hashCode() + port;
         }
+    }
+
+    // Handles the messages InboundReader decoded from peer connections, called on the inbound worker pool
+    class PeerHandler implements InboundQueue.Handler {
+        private Random random = new Random();
 
         @Override
-        public void run() {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(peerSocket.getInputStream()));
-                String message;
-
-                while ((message = reader.readLine()) != null) {
-                    System.out.println("Message from peer: " + message);
-
-                    // Check if it's a broadcast message or a forwarded message
-                    if (message.startsWith("BROADCAST:")) {
-                        // It's a broadcast message, call obj1.abc()
-                        String actualMessage = message.substring(message.indexOf(':', 10) + 1); // Extract the actual message
-                        int forwardCount = Integer.parseInt(message.split(":")[1]);
-                        System.out.println("Received broadcast message: " + actualMessage);
-                        System.out.println("Message was forwarded " + forwardCount + " times before being broadcast.");
-                        obj1.abc(actualMessage, 10);  // Call obj1.abc when a broadcast is received
-                    } else if (message.startsWith("FORWARD:")) {
-                        // It's a forwarded message, extract the counter and message
-                        String[] messageParts = message.split(":");
-                        int forwardCount = Integer.parseInt(messageParts[1]);
-                        String actualMessage = messageParts[2];
-
-                        System.out.println("Received forwarded message: " + actualMessage + " with forward count: " + forwardCount);
-
-                        // Generate a random number and decide what to do with the message
-                        int randomNumber = random.nextInt(100);
-                        System.out.println("Generated random number (on receive): " + randomNumber);
-
-                        if (randomNumber % 2 == 0) {
-                            // Even number: Broadcast the message to all peers
-                            System.out.println("Even number received, broadcasting message to all peers...");
-                            broadcastMessageToAll("BROADCAST:" + forwardCount + ":" + actualMessage);
-                        } else {
-                            // Odd number: Forward the message to a random peer with incremented counter
-                            forwardMessageToRandomPeer("FORWARD:" + (forwardCount + 1) + ":" + actualMessage);
-                        }
-                    }
+        public void handle(PeerMessage message, String senderIp) {
+            Log.debug("Message from peer: {}", message); // Rendered by the log writer, only if enabled
+            messagesReceived.increment();
+
+            // Drop duplicates before they trigger another broadcast, forward or search
+            if (!seenMessages.markSeen(message.getDedupKey())) {
+                duplicatesDropped.increment();
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Dropping duplicate message {}", Long.toHexString(message.getMessageId()));
                 }
+                return;
+            }
+            String actualMessage = message.getPayload();
+            int forwardCount = message.getForwardCount();
 
-            } catch (IOException ex) {
-                System.out.println("Peer handler exception: " + ex.getMessage());
+            if (!message.isAntiEntropy() && !message.isCatchUp()) {
+                record(Journal.RECEIVED, message);
             }
-        }
 
-        // Use the broadcast method directly within the PeerHandler
-        private void broadcastMessageToAll(String message) {
-            for (ClientInfo peer : peerList) {
-                try {
-                    Socket peerSocket = new Socket(peer.getIpAddress(), peer.getPort());
-                    PrintWriter peerOut = new PrintWriter(peerSocket.getOutputStream(), true);
-                    peerOut.println(message);
-                    peerSocket.close();
-                    System.out.println("Message broadcasted to peer " + peer.getId());
-                } catch (IOException e) {
-                    System.out.println("Error broadcasting message to peer: " + peer.getIpAddress() + ":" + peer.getPort());
+            // Check if it's a broadcast message, a forwarded message or part of the gossip protocol
+            if (message.isCatchUp()) {
+                serveCatchUp(actualMessage, senderIp);
+            } else if (message.isGossip() || message.isAntiEntropy()) {
+                gossip.handle(message, senderIp);
+            } else if (message.isBroadcast()) {
+                // It's a broadcast message, hand it to the listener (MainApp.abc() unless replaced)
+                Log.debug("Received broadcast message: {}", actualMessage);
+                Log.debug("Message was forwarded {} times before being broadcast.", forwardCount);
+                deliver(actualMessage);
+            } else if (message.isForward()) {
+                Log.debug("Received forwarded message: {} with forward count: {}", actualMessage, forwardCount);
+
+                // Generate a random number and decide what to do with the message
+                int randomNumber = random.nextInt(100);
+                Log.debug("Generated random number (on receive): {}", randomNumber);
+
+                if (!message.canBeRelayed()) {
+                    // Hop limit reached: end the walk with a final broadcast instead of forwarding forever
+                    Log.debug("Hop limit reached after {} forwards, broadcasting message to all peers...", forwardCount);
+                    hopLimitReached.increment();
+                    broadcastMessageToAll(message.asBroadcast());
+                } else if (randomNumber % 2 == 0) {
+                    // Even number: Broadcast the message to all peers
+                    Log.debug("Even number received, broadcasting message to all peers...");
+                    broadcastMessageToAll(message.asBroadcast());
+                } else {
+                    // Odd number: Forward the message to a random peer with incremented counter
+                    forwardMessageToRandomPeer(message.nextForward());
                 }
             }
         }
 
-        // Use the forward method within the PeerHandler for forwarding to a random peer with incremented counter
-        private void forwardMessageToRandomPeer(String message) {
-            ClientInfo randomPeer = peerList.get(random.nextInt(peerList.size()));
-            System.out.println("Forwarding message to random peer: " + randomPeer.getIpAddress() + ":" + randomPeer.getPort());
-            try {
-                Socket peerSocket = new Socket(randomPeer.getIpAddress(), randomPeer.getPort());
-                PrintWriter peerOut = new PrintWriter(peerSocket.getOutputStream(), true);
-                peerOut.println(message);
-                peerSocket.close();
-                System.out.println("Message forwarded to peer " + randomPeer.getId());
-            } catch (IOException e) {
-                System.out.println("Error forwarding message to peer: " + randomPeer.getIpAddress() + ":" + randomPeer.getPort());
+        // Use the broadcast method directly within the PeerHandler
+        private void broadcastMessageToAll(PeerMessage message) {
+            PeerClient10C.this.broadcastMessageToAll(message);
+        }
+
+        // Use the forward method within the PeerHandler for forwarding to a random peer with incremented counter.
+        // Sent on the fan-out pool like a broadcast, so the worker moves on to the next message right away.
+        private void forwardMessageToRandomPeer(PeerMessage message) {
+            ClientInfo randomPeer = PeerClient10C.this.choosePeer(random);
+            if (randomPeer == null) {
+                return;
             }
+            Log.debug("Forwarding message to random peer: {}:{}", randomPeer.getIpAddress(), randomPeer.getPort());
+            forwarded.increment();
+            connectionPool.sendAsync(randomPeer, message).thenAccept(outcome -> {
+                if (outcome.isReached()) {
+                    Log.debug("Message forwarded to peer {}", randomPeer.getId());
+                } else {
+                    Log.warn("Error forwarding message to peer: {}:{}", randomPeer.getIpAddress(), randomPeer.getPort());
+                }
+            });
         }
     }
 }
@@ -0,0 +1,508 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps one long-lived connection per peer so messages don't pay a TCP handshake each hop.
+// Messages are encoded once into a FramePool frame, however many peers they go to.
+// Every pooled binary connection is pinged each PING_INTERVAL_MS: the pongs give PeerHealth the peer's round trip,
+// and a ping left unanswered for REPLY_TIMEOUT_MS suspects the peer and drops the connection, so a peer that died
+// without closing its sockets stops getting messages within a few seconds.
+public class PeerConnectionPool {
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int WRITE_TIMEOUT_MS = 2000; // A write stuck longer than this aborts the connection
+    private static final int MAX_IN_FLIGHT_SENDS = 32; // Upper bound on concurrent sends across all broadcasts
+    private static final int MAX_QUEUED_SENDS = 16_384; // Callers don't wait for their sends, past this many new ones fail at once
+    private static final int NEGOTIATION_TIMEOUT_MS = 200; // Old text-only peers never answer the binary hello
+    private static final int RENEGOTIATE_AFTER_SENDS = 1000; // A text connection offers frames again after this many
+    private static final long RENEGOTIATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30); // or after this long
+    private static final long PING_INTERVAL_MS = 1000;
+    private static final long REPLY_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(250); // A pong later than this is picked up by the next ping
+    private static final long REPLY_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(2000);
+    private static final int MAX_REPLY_FRAME = 64; // Pongs are a couple dozen bytes
+
+    private final Map<PeerClient10C.ClientInfo, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final PeerHealth health = new PeerHealth(); // Fed by every send, used to pick forward targets
+
+    // Shared by every pool in the JVM, so simulated peers don't each bring their own threads
+    private static final ExecutorService fanoutExecutor = Executors.newFixedThreadPool(MAX_IN_FLIGHT_SENDS, daemonThreads("peer-send"));
+    private static final ScheduledExecutorService writeWatchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("peer-write-watchdog"));
+    private static final ScheduledExecutorService pinger = Executors.newSingleThreadScheduledExecutor(daemonThreads("peer-ping")); // Pings run on the fan-out pool
+    private static final Set<PeerConnectionPool> pools = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger queuedSends = new AtomicInteger(); // Waiting for a fan-out thread
+
+    // Across all pools, published through Metrics
+    private static final LongAdder messagesSent = Metrics.counter("peer.messagesSent");
+    private static final LongAdder sendFailures = Metrics.counter("peer.sendFailures");
+    private static final LongAdder sendsShed = Metrics.counter("peer.sendsShed"); // Failed because the fan-out queue was full
+    private static final LongAdder textFallbacks = Metrics.counter("peer.textFallbacks"); // Connections that got no binary ack in time
+    private static final LatencyHistogram sendLatency = Metrics.histogram("peer.sendLatency"); // Including connect and one retry
+    private static final LongAdder pingsSent = Metrics.counter("peer.pings");
+    private static final LongAdder missedPings = Metrics.counter("peer.missedPings");
+    private static final LatencyHistogram roundTrip = Metrics.histogram("peer.rtt"); // Ping to pong, and connection handshakes
+
+    static {
+        pinger.scheduleWithFixedDelay(() -> {
+            for (PeerConnectionPool pool : pools) {
+                for (PeerConnection connection : pool.connections.values()) {
+                    connection.schedulePing();
+                }
+            }
+        }, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public PeerConnectionPool() {
+        pools.add(this);
+    }
+
+    // Send one message to the peer, reconnecting once if the pooled connection has gone stale
+    public void send(PeerClient10C.ClientInfo peer, PeerMessage message) throws IOException {
+        FramePool.Frame frame = FramePool.encode(message, 1);
+        try {
+            send(peer, frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void send(PeerClient10C.ClientInfo peer, FramePool.Frame frame) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            connections.computeIfAbsent(peer, PeerConnection::new).send(frame);
+            messagesSent.increment();
+        } catch (IOException e) {
+            sendFailures.increment();
+            health.recordFailure(peer);
+            throw e;
+        } finally {
+            sendLatency.recordSince(startTime);
+        }
+    }
+
+    // Send on the fan-out pool, so callers such as the forward scheduler never block on the network
+    public CompletableFuture<PeerOutcome> sendAsync(PeerClient10C.ClientInfo peer, PeerMessage message) {
+        return submit(peer, FramePool.encode(message, 1));
+    }
+
+    // Send the message to every peer concurrently, completing once each peer was reached or gave up.
+    // The frame is encoded here once and shared by all the sends.
+    public CompletableFuture<BroadcastResult> broadcast(List<PeerClient10C.ClientInfo> peers, PeerMessage message) {
+        if (peers.isEmpty()) {
+            return CompletableFuture.completedFuture(new BroadcastResult(new ArrayList<>()));
+        }
+        FramePool.Frame frame = FramePool.encode(message, peers.size());
+        List<CompletableFuture<PeerOutcome>> sends = new ArrayList<>(peers.size());
+        for (PeerClient10C.ClientInfo peer : peers) {
+            sends.add(submit(peer, frame));
+        }
+
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<PeerOutcome> outcomes = new ArrayList<>(sends.size());
+            for (CompletableFuture<PeerOutcome> send : sends) {
+                outcomes.add(send.join());
+            }
+            return new BroadcastResult(outcomes);
+        });
+    }
+
+    // Queue the send for the fan-out pool, or fail it right away when too many are already waiting there.
+    // Either way the frame is released once the send is over.
+    private CompletableFuture<PeerOutcome> submit(PeerClient10C.ClientInfo peer, FramePool.Frame frame) {
+        if (queuedSends.incrementAndGet() > MAX_QUEUED_SENDS) {
+            queuedSends.decrementAndGet();
+            sendsShed.increment();
+            frame.release();
+            return CompletableFuture.completedFuture(new PeerOutcome(peer, new IOException("Too many sends queued"), 0));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            queuedSends.decrementAndGet();
+            return sendTimed(peer, frame);
+        }, fanoutExecutor);
+    }
+
+    // Releases the frame once the send is over, whatever its outcome
+    private PeerOutcome sendTimed(PeerClient10C.ClientInfo peer, FramePool.Frame frame) {
+        long startTime = System.nanoTime();
+        try {
+            send(peer, frame);
+            return new PeerOutcome(peer, null, System.nanoTime() - startTime);
+        } catch (IOException e) {
+            return new PeerOutcome(peer, e, System.nanoTime() - startTime);
+        } finally {
+            frame.release();
+        }
+    }
+
+    public PeerHealth getHealth() {
+        return health;
+    }
+
+    public static long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    // Drop the pooled connection to a peer, the next send opens a fresh one
+    public void invalidate(PeerClient10C.ClientInfo peer) {
+        PeerConnection connection = connections.remove(peer);
+        if (connection != null) {
+            connection.retire();
+        }
+    }
+
+    public void closeAll() {
+        pools.remove(this);
+        for (PeerClient10C.ClientInfo peer : connections.keySet()) {
+            invalidate(peer);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Outcome of a broadcast, one entry per peer in the order they were given
+    public static class BroadcastResult {
+        private final List<PeerOutcome> outcomes;
+
+        public BroadcastResult(List<PeerOutcome> outcomes) {
+            this.outcomes = outcomes;
+        }
+
+        public List<PeerOutcome> getOutcomes() {
+            return outcomes;
+        }
+
+        public int getReachedCount() {
+            int reached = 0;
+            for (PeerOutcome outcome : outcomes) {
+                if (outcome.isReached()) {
+                    reached++;
+                }
+            }
+            return reached;
+        }
+    }
+
+    public static class PeerOutcome {
+        private final PeerClient10C.ClientInfo peer;
+        private final IOException error;
+        private final long elapsedNanos;
+
+        public PeerOutcome(PeerClient10C.ClientInfo peer, IOException error, long elapsedNanos) {
+            this.peer = peer;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public PeerClient10C.ClientInfo getPeer() {
+            return peer;
+        }
+
+        public boolean isReached() {
+            return error == null;
+        }
+
+        public IOException getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+    }
+
+    // A single peer's connection, writes are serialized so frames from different threads never interleave.
+    // Frames go straight from their pooled buffer to the channel, text lines through a writer on the same channel.
+    private class PeerConnection {
+        private final PeerClient10C.ClientInfo peer;
+        private volatile SocketChannel channel;
+        private BufferedWriter writer; // Only used for peers that didn't accept binary frames
+        private long textSince; // When the connection fell back to text
+        private int textSends;
+        private volatile boolean writeTimedOut;
+        private volatile boolean retired; // Removed from the pool, must not reconnect
+        private long pingSentAt; // System.nanoTime() of the unanswered ping on this channel, 0 when none is
+        private volatile boolean pingQueued; // Only one ping task per connection waits on the fan-out pool
+        private final ByteBuffer replies = ByteBuffer.allocate(4 * MAX_REPLY_FRAME); // Read back from the peer, ping tasks only
+        private SocketChannel repliesFrom; // The channel the bytes in replies came from
+
+        public PeerConnection(PeerClient10C.ClientInfo peer) {
+            this.peer = peer;
+        }
+
+        public synchronized void send(FramePool.Frame frame) throws IOException {
+            boolean reused = channel != null;
+            try {
+                write(frame);
+            } catch (IOException e) {
+                close();
+                if (!reused || writeTimedOut) {
+                    throw e; // A fresh connection failed or the peer stopped reading, it's really unreachable
+                }
+                // The pooled connection was broken, retry once on a new one
+                write(frame);
+            }
+        }
+
+        private void write(FramePool.Frame frame) throws IOException {
+            // Text lines lose the message ID, so duplicates get handled again and gossip, anti-entropy and catch-up
+            // don't work. The ack may only have been late, so offer frames again now and then.
+            if (writer != null && (textSends >= RENEGOTIATE_AFTER_SENDS || System.nanoTime() - textSince >= RENEGOTIATE_AFTER_NANOS)) {
+                close();
+            }
+            if (channel == null) {
+                connect();
+            }
+
+            // Blocking socket writes have no timeout of their own, the watchdog closes the socket instead
+            writeTimedOut = false;
+            ScheduledFuture<?> watchdog = writeWatchdog.schedule(this::timeOut, WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            try {
+                if (writer == null) {
+                    ByteBuffer view = frame.view();
+                    while (view.hasRemaining()) {
+                        channel.write(view);
+                    }
+                } else {
+                    writer.write(frame.getMessage().toTextLine());
+                    writer.newLine();
+                    writer.flush();
+                    textSends++;
+                }
+            } catch (IOException e) {
+                throw writeTimedOut ? new SocketTimeoutException("Write to peer timed out") : e;
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+
+        private void connect() throws IOException {
+            if (retired) {
+                throw new SocketException("Connection to peer was removed from the pool");
+            }
+            SocketChannel newChannel = open();
+            boolean binary;
+            try {
+                binary = negotiateBinary(newChannel);
+            } catch (IOException e) {
+                newChannel.close();
+                throw e;
+            }
+            if (!binary) {
+                // A slow peer may still take the hello and expect frames, so text goes on a connection without one
+                textFallbacks.increment();
+                Log.debug("Peer {}:{} didn't accept binary frames in time, sending text", peer.getIpAddress(), peer.getPort());
+                newChannel.close();
+                newChannel = open();
+                health.recordReply(peer); // Old peers can't answer pings, a working connection is all they show
+                writer = new BufferedWriter(new OutputStreamWriter(newChannel.socket().getOutputStream(), StandardCharsets.UTF_8));
+                textSince = System.nanoTime();
+                textSends = 0;
+            } else {
+                writer = null;
+            }
+            channel = newChannel;
+        }
+
+        private SocketChannel open() throws IOException {
+            SocketChannel newChannel = SocketChannel.open();
+            try {
+                Socket newSocket = newChannel.socket(); // Blocking channel, its socket adapter gives connect and read timeouts
+                newSocket.setTcpNoDelay(true);
+                newSocket.setKeepAlive(true);
+                long start = System.nanoTime();
+                newSocket.connect(new InetSocketAddress(peer.getIpAddress(), peer.getPort()), CONNECT_TIMEOUT_MS);
+                recordRoundTrip(System.nanoTime() - start); // The handshake is one round trip
+                return newChannel;
+            } catch (IOException e) {
+                newChannel.close();
+                throw e;
+            }
+        }
+
+        // Offer binary frames, false when the peer doesn't acknowledge in time
+        private boolean negotiateBinary(SocketChannel newChannel) throws IOException {
+            ByteBuffer hello = ByteBuffer.wrap((PeerMessage.BINARY_HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+            while (hello.hasRemaining()) {
+                newChannel.write(hello);
+            }
+
+            Socket newSocket = newChannel.socket();
+            newSocket.setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+            try {
+                return newSocket.getInputStream().read() == PeerMessage.BINARY_ACK;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                newSocket.setSoTimeout(0);
+            }
+        }
+
+        void schedulePing() {
+            if (!pingQueued) {
+                pingQueued = true;
+                fanoutExecutor.execute(this::ping);
+            }
+        }
+
+        // Suspect the peer when the last ping went unanswered for too long, otherwise ping again if it was answered,
+        // and wait a little for the pong. Text connections can't carry pings, old peers are only judged by their sends.
+        private void ping() {
+            pingQueued = false;
+            SocketChannel pinged;
+            synchronized (this) {
+                if (channel == null || writer != null) {
+                    return;
+                }
+                long now = System.nanoTime();
+                if (pingSentAt != 0 && now - pingSentAt >= REPLY_TIMEOUT_NANOS) {
+                    missedPings.increment();
+                    health.recordMissedReply(peer);
+                    close(); // The next send reconnects, and fails if the peer is really gone
+                    return;
+                }
+                if (pingSentAt == 0) {
+                    FramePool.Frame frame = FramePool.encode(PeerMessage.ping(now), 1);
+                    try {
+                        write(frame);
+                        pingSentAt = now;
+                        pingsSent.increment();
+                    } catch (IOException e) {
+                        close();
+                        health.recordFailure(peer);
+                        return;
+                    } finally {
+                        frame.release();
+                    }
+                }
+                pinged = channel;
+            }
+            awaitPong(pinged);
+        }
+
+        // Read replies outside the lock, so sends to this peer don't queue behind the round trip.
+        // Only ping tasks read, and only one of them runs per connection at a time.
+        private void awaitPong(SocketChannel pinged) {
+            if (pinged != repliesFrom) {
+                replies.clear();
+                repliesFrom = pinged;
+            }
+            Socket socket = pinged.socket();
+            long deadline = System.nanoTime() + REPLY_WAIT_NANOS;
+            try {
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    int read = socket.getInputStream().read(replies.array(), replies.position(), replies.remaining());
+                    if (read < 0) {
+                        throw new EOFException("Peer closed the connection");
+                    }
+                    replies.position(replies.position() + read);
+                    if (takePongs(pinged)) {
+                        return;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Still unanswered, the next ping task checks again
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (pinged == channel) { // Not just closed under us by a send or the watchdog
+                        close();
+                        health.recordFailure(peer);
+                    }
+                }
+            }
+        }
+
+        // Decode the complete frames read so far, true if the pong for the outstanding ping was among them
+        private boolean takePongs(SocketChannel pinged) throws IOException {
+            boolean answered = false;
+            replies.flip();
+            try {
+                while (replies.remaining() >= 4) {
+                    int frameLength = replies.getInt(replies.position());
+                    if (frameLength <= 0 || frameLength > MAX_REPLY_FRAME) {
+                        throw new IOException("Invalid reply frame length: " + frameLength);
+                    }
+                    if (replies.remaining() < 4 + frameLength) {
+                        break;
+                    }
+                    ByteBuffer frame = replies.duplicate();
+                    frame.limit(replies.position() + 4 + frameLength).position(replies.position() + 4);
+                    replies.position(replies.position() + 4 + frameLength);
+                    PeerMessage reply = PeerMessage.decode(frame);
+                    if (reply.isPong()) {
+                        answered |= pongReceived(pinged, reply.getMessageId());
+                    }
+                }
+            } finally {
+                replies.compact();
+            }
+            return answered;
+        }
+
+        private synchronized boolean pongReceived(SocketChannel pinged, long sentAt) {
+            if (pinged != channel || sentAt != pingSentAt) {
+                return false; // The connection was replaced meanwhile
+            }
+            pingSentAt = 0;
+            recordRoundTrip(System.nanoTime() - sentAt);
+            health.recordReply(peer);
+            return true;
+        }
+
+        private void recordRoundTrip(long rttNanos) {
+            roundTrip.recordNanos(rttNanos);
+            health.recordRoundTrip(peer, rttNanos);
+        }
+
+        public void retire() {
+            retired = true;
+            abort();
+        }
+
+        private void timeOut() {
+            writeTimedOut = true;
+            abort();
+        }
+
+        // Closes the channel without taking the lock, which unblocks a writer stuck in send
+        public void abort() {
+            SocketChannel current = channel;
+            if (current == null) {
+                return;
+            }
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.warn("Error closing connection to peer: {}:{}", peer.getIpAddress(), peer.getPort());
+            }
+        }
+
+        private synchronized void close() {
+            abort();
+            channel = null;
+            writer = null;
+            pingSentAt = 0;
+        }
+    }
+}
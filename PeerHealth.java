@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// What one peer has observed about the others: a smoothed round-trip time per peer, measured by the connection
+// pool's pings and by the handshake of every connection it opens, and a suspicion that marks a peer dead for
+// a growing while after consecutive failed sends or unanswered pings. A suspected peer is tried again once its
+// suspicion runs out, the next reply clears it. Neither a successful write nor a handshake proves the peer works:
+// the first only reached our kernel, the second only the peer's.
+public class PeerHealth {
+    private static final long MIN_SUSPICION_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_SUSPICION_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int SAMPLE_ATTEMPTS = 8; // Random draws for a live peer before scanning the whole list
+
+    // Across all peers in the JVM, published through Metrics
+    private static final LongAdder suspicions = Metrics.counter("peer.suspicions");
+
+    private final Map<PeerClient10C.ClientInfo, State> states = new ConcurrentHashMap<>();
+
+    public void recordRoundTrip(PeerClient10C.ClientInfo peer, long rttNanos) {
+        states.computeIfAbsent(peer, p -> new State()).roundTrip(rttNanos);
+    }
+
+    // The peer itself answered, so it's alive
+    public void recordReply(PeerClient10C.ClientInfo peer) {
+        states.computeIfAbsent(peer, p -> new State()).reply();
+    }
+
+    public void recordFailure(PeerClient10C.ClientInfo peer) {
+        suspect(peer, "a failed send");
+    }
+
+    public void recordMissedReply(PeerClient10C.ClientInfo peer) {
+        suspect(peer, "an unanswered ping");
+    }
+
+    private void suspect(PeerClient10C.ClientInfo peer, String reason) {
+        if (states.computeIfAbsent(peer, p -> new State()).failure()) {
+            suspicions.increment();
+            Log.info("Suspecting peer {}:{} after {}", peer.getIpAddress(), peer.getPort(), reason);
+        }
+    }
+
+    public boolean isSuspected(PeerClient10C.ClientInfo peer) {
+        State state = states.get(peer);
+        return state != null && state.isSuspected(System.nanoTime());
+    }
+
+    // Smoothed round-trip time, 0 for a peer not measured yet
+    public long getRttNanos(PeerClient10C.ClientInfo peer) {
+        State state = states.get(peer);
+        return state != null ? state.getSmoothedNanos() : 0;
+    }
+
+    // The peers not currently suspected, in their original order
+    public List<PeerClient10C.ClientInfo> live(List<PeerClient10C.ClientInfo> peers) {
+        List<PeerClient10C.ClientInfo> live = new ArrayList<>(peers.size());
+        for (PeerClient10C.ClientInfo peer : peers) {
+            if (!isSuspected(peer)) {
+                live.add(peer);
+            }
+        }
+        return live;
+    }
+
+    // Power of two choices: draw two live peers at random and take the one with the shorter round trip.
+    // A peer without a measurement yet is neither favoured nor avoided, the first draw stands. Falls back to
+    // any peer when all of them are suspected, null only for an empty list.
+    public PeerClient10C.ClientInfo choose(List<PeerClient10C.ClientInfo> peers, Random random) {
+        if (peers.isEmpty()) {
+            return null;
+        }
+        PeerClient10C.ClientInfo first = randomLivePeer(peers, random);
+        if (first == null) {
+            return peers.get(random.nextInt(peers.size()));
+        }
+        PeerClient10C.ClientInfo second = randomLivePeer(peers, random);
+        if (second == null) {
+            return first;
+        }
+        long firstRtt = getRttNanos(first);
+        long secondRtt = getRttNanos(second);
+        if (firstRtt == 0 || secondRtt == 0 || firstRtt <= secondRtt) {
+            return first;
+        }
+        return second;
+    }
+
+    private PeerClient10C.ClientInfo randomLivePeer(List<PeerClient10C.ClientInfo> peers, Random random) {
+        for (int i = 0; i < SAMPLE_ATTEMPTS; i++) {
+            PeerClient10C.ClientInfo peer = peers.get(random.nextInt(peers.size()));
+            if (!isSuspected(peer)) {
+                return peer;
+            }
+        }
+
+        // Most peers are suspected, pick among the few that aren't
+        List<PeerClient10C.ClientInfo> live = live(peers);
+        return live.isEmpty() ? null : live.get(random.nextInt(live.size()));
+    }
+
+    private static class State {
+        private long smoothedNanos; // EWMA with weight 1/8 per sample, as TCP smooths its RTT
+        private int consecutiveFailures;
+        private long suspectedUntilNanos;
+
+        synchronized void roundTrip(long rttNanos) {
+            rttNanos = Math.max(1, rttNanos); // 0 means unmeasured
+            smoothedNanos = smoothedNanos == 0 ? rttNanos : smoothedNanos + (rttNanos - smoothedNanos) / 8;
+        }
+
+        synchronized void reply() {
+            consecutiveFailures = 0;
+            suspectedUntilNanos = 0;
+        }
+
+        // Returns true when this failure turned a trusted peer into a suspected one
+        synchronized boolean failure() {
+            long now = System.nanoTime();
+            boolean wasTrusted = consecutiveFailures == 0;
+            consecutiveFailures++;
+            long suspicion = MIN_SUSPICION_NANOS << Math.min(consecutiveFailures - 1, 16);
+            suspectedUntilNanos = now + Math.min(suspicion, MAX_SUSPICION_NANOS);
+            return wasTrusted;
+        }
+
+        synchronized boolean isSuspected(long now) {
+            return consecutiveFailures > 0 && now - suspectedUntilNanos < 0;
+        }
+
+        synchronized long getSmoothedNanos() {
+            return smoothedNanos;
+        }
+    }
+}
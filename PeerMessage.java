@@ -0,0 +1,310 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A gossip message between peers, with the legacy text line encoding and the length-prefixed binary frame.
+// GOSSIP, DIGEST, PULL, CATCHUP, PING and PONG only exist as frames: text peers get GOSSIP as a plain broadcast
+// and ignore the rest, and are never pinged.
+// Frame layout: [int length][byte type][varint forwardCount][varint ttl][long messageId][UTF-8 payload until the end]
+public class PeerMessage {
+    public static final byte BROADCAST = 1;
+    public static final byte FORWARD = 2;
+    public static final byte GOSSIP = 3; // Pushed to a few peers per round, ttl counts the rounds left
+    public static final byte DIGEST = 4; // Anti-entropy: the IDs of the messages the sender holds
+    public static final byte PULL = 5; // Anti-entropy: the IDs the sender is missing and wants resent
+    public static final byte CATCHUP = 6; // A restarted peer asking for the messages journaled since it went down
+    public static final byte PING = 7; // Liveness probe on a pooled connection, the ID is the sender's System.nanoTime()
+    public static final byte PONG = 8; // Written back on the same connection by the receiver's I/O thread, same ID
+
+    // A sender that wants frames opens with this text line, old peers just log and ignore it
+    public static final String BINARY_HELLO = "HELLO:BIN3";
+    // Reply from a peer that switched the connection to frames, can never start a text line
+    public static final int BINARY_ACK = 0xB1;
+
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final int HEADER_LENGTH = 4 + 1 + 5 + 5 + 8; // Length, type, two longest varints, message ID
+    public static final int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - (HEADER_LENGTH - 4); // UTF-8 bytes that always fit a frame
+
+    // Hops a new message may travel before peers stop relaying it
+    public static final int DEFAULT_TTL = 16;
+
+    private final byte type;
+    private final int forwardCount;
+    private final int ttl; // Hops left, a message with 0 is delivered but never relayed again
+    private final long messageId;
+    private final String payload;
+
+    public PeerMessage(byte type, int forwardCount, int ttl, long messageId, String payload) {
+        this.type = type;
+        this.forwardCount = forwardCount;
+        this.ttl = ttl;
+        this.messageId = messageId;
+        this.payload = payload;
+    }
+
+    public static PeerMessage broadcast(int forwardCount, String payload) {
+        return new PeerMessage(BROADCAST, forwardCount, DEFAULT_TTL, newMessageId(), payload);
+    }
+
+    public static PeerMessage forward(int forwardCount, String payload) {
+        return new PeerMessage(FORWARD, forwardCount, DEFAULT_TTL, newMessageId(), payload);
+    }
+
+    public static PeerMessage gossip(int rounds, String payload) {
+        return new PeerMessage(GOSSIP, 0, rounds, newMessageId(), payload);
+    }
+
+    public static PeerMessage digest(String payload) {
+        return new PeerMessage(DIGEST, 0, 0, newMessageId(), payload);
+    }
+
+    public static PeerMessage pull(String payload) {
+        return new PeerMessage(PULL, 0, 0, newMessageId(), payload);
+    }
+
+    public static PeerMessage catchUp(String payload) {
+        return new PeerMessage(CATCHUP, 0, 0, newMessageId(), payload);
+    }
+
+    // Sent at the given System.nanoTime(), which the pong carries back so the sender gets the round trip
+    public static PeerMessage ping(long sentAtNanos) {
+        return new PeerMessage(PING, 0, 0, sentAtNanos, "");
+    }
+
+    // The answer to this ping
+    public PeerMessage pong() {
+        return new PeerMessage(PONG, 0, 0, messageId, "");
+    }
+
+    private static long newMessageId() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    // Same message travelling on as a broadcast, keeps its ID and uses up one hop
+    public PeerMessage asBroadcast() {
+        return new PeerMessage(BROADCAST, forwardCount, Math.max(0, ttl - 1), messageId, payload);
+    }
+
+    // Same message forwarded one more hop, keeps its ID
+    public PeerMessage nextForward() {
+        return new PeerMessage(FORWARD, forwardCount + 1, Math.max(0, ttl - 1), messageId, payload);
+    }
+
+    // Same gossip pushed on for another round, keeps its ID and uses up one round
+    public PeerMessage nextRound() {
+        return new PeerMessage(GOSSIP, forwardCount + 1, Math.max(0, ttl - 1), messageId, payload);
+    }
+
+    // Same message resent by anti-entropy or catch-up, delivered but never relayed
+    public PeerMessage asRepair() {
+        return new PeerMessage(type, forwardCount, 0, messageId, payload);
+    }
+
+    public boolean canBeRelayed() {
+        return ttl > 0;
+    }
+
+    // Key for duplicate suppression. A BROADCAST is handled once per peer, a FORWARD once per hop,
+    // so a random walk may pass a peer again while a resent copy of the same hop is still dropped.
+    public long getDedupKey() {
+        long key = messageId * 31 + type;
+        return isForward() ? key * 31 + forwardCount : key;
+    }
+
+    public boolean isBroadcast() {
+        return type == BROADCAST;
+    }
+
+    public boolean isForward() {
+        return type == FORWARD;
+    }
+
+    public boolean isGossip() {
+        return type == GOSSIP;
+    }
+
+    // DIGEST and PULL carry anti-entropy bookkeeping rather than a payload for the application
+    public boolean isAntiEntropy() {
+        return type == DIGEST || type == PULL;
+    }
+
+    public boolean isDigest() {
+        return type == DIGEST;
+    }
+
+    public boolean isCatchUp() {
+        return type == CATCHUP;
+    }
+
+    public boolean isPing() {
+        return type == PING;
+    }
+
+    public boolean isPong() {
+        return type == PONG;
+    }
+
+    public int getForwardCount() {
+        return forwardCount;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    // Text encoding understood by old peers, e.g. "FORWARD:3:payload"
+    public String toTextLine() {
+        switch (type) {
+            case FORWARD:
+                return "FORWARD:" + forwardCount + ":" + payload;
+            case DIGEST:
+                return "DIGEST:" + payload; // Not a gossip line, old peers log and drop it
+            case PULL:
+                return "PULL:" + payload;
+            case CATCHUP:
+                return "CATCHUP:" + payload;
+            default:
+                return "BROADCAST:" + forwardCount + ":" + payload;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isGossip() ? "GOSSIP:" + ttl + ":" + payload : toTextLine();
+    }
+
+    // Parse a text line, returns null for lines that aren't gossip messages.
+    // Only the first two ':' are separators so payloads may contain ':' themselves.
+    // Text lines carry no ID or TTL, so each gets a fresh ID and the hops left are derived from the forward count.
+    public static PeerMessage parseTextLine(String line) {
+        String[] messageParts = line.split(":", 3);
+        if (messageParts.length != 3) {
+            return null;
+        }
+
+        byte type;
+        if (messageParts[0].equals("BROADCAST")) {
+            type = BROADCAST;
+        } else if (messageParts[0].equals("FORWARD")) {
+            type = FORWARD;
+        } else {
+            return null;
+        }
+
+        try {
+            int forwardCount = Integer.parseInt(messageParts[1]);
+            int ttl = Math.max(0, DEFAULT_TTL - forwardCount);
+            return new PeerMessage(type, forwardCount, ttl, newMessageId(), messageParts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Encode this message as one frame into the buffer, growing it when it's too small.
+    // Returns the buffer holding the frame, flipped and ready to be written.
+    public ByteBuffer encode(ByteBuffer buffer, CharsetEncoder encoder) {
+        while (true) {
+            buffer.clear();
+            if (buffer.capacity() >= HEADER_LENGTH && encodeInto(buffer, encoder)) {
+                buffer.flip();
+                return buffer;
+            }
+            buffer = ByteBuffer.allocate(Math.max(HEADER_LENGTH + payload.length() * 3, buffer.capacity() * 2));
+        }
+    }
+
+    private boolean encodeInto(ByteBuffer buffer, CharsetEncoder encoder) {
+        buffer.position(4); // Length is filled in once the payload size is known
+        buffer.put(type);
+        putVarint(buffer, forwardCount);
+        putVarint(buffer, ttl);
+        buffer.putLong(messageId);
+
+        encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(payload);
+        CoderResult result = encoder.encode(chars, buffer, true);
+        if (result.isOverflow() || encoder.flush(buffer).isOverflow()) {
+            return false;
+        }
+
+        int frameLength = buffer.position() - 4;
+        if (frameLength > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Message too large for a frame: " + frameLength + " bytes");
+        }
+        buffer.putInt(0, frameLength);
+        return true;
+    }
+
+    // Read the next frame body from the stream into the reusable buffer, throws EOFException at end of stream.
+    // Returns the buffer holding the frame, which is a larger replacement when the frame didn't fit.
+    public static ByteBuffer readFrame(DataInputStream in, ByteBuffer buffer) throws IOException {
+        int frameLength = in.readInt();
+        if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + frameLength);
+        }
+        if (buffer.capacity() < frameLength) {
+            buffer = ByteBuffer.allocate(Math.max(frameLength, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        in.readFully(buffer.array(), 0, frameLength);
+        buffer.limit(frameLength);
+        return buffer;
+    }
+
+    // Decode a frame body (everything after the length prefix)
+    public static PeerMessage decode(ByteBuffer frame) throws IOException {
+        try {
+            byte type = frame.get();
+            if (type < BROADCAST || type > PONG) {
+                throw new IOException("Unknown frame type: " + type);
+            }
+            int forwardCount = getVarint(frame);
+            int ttl = getVarint(frame);
+            long messageId = frame.getLong();
+            String payload;
+            if (frame.hasArray()) {
+                payload = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[frame.remaining()]; // A journal record in a mapped segment
+                frame.get(bytes);
+                payload = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new PeerMessage(type, forwardCount, ttl, messageId, payload);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in frame");
+    }
+}
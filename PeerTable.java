@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// One peer's view of the membership: the list read when joining plus the JOIN/LEAVE deltas the server streams after it.
+// Every change publishes a new immutable list, readers just take the current one and never see a half-applied change.
+public class PeerTable {
+    private volatile List<PeerClient10C.ClientInfo> peers = Collections.emptyList();
+    private long version; // Last membership version applied, 0 for a legacy list without versions
+    private int nextId = 1;
+
+    // Replace the whole table with a list from the server
+    public synchronized void reset(long version, List<PeerClient10C.ClientInfo> snapshot) {
+        this.version = version;
+        for (PeerClient10C.ClientInfo peer : snapshot) {
+            nextId = Math.max(nextId, peer.getId() + 1);
+        }
+        peers = Collections.unmodifiableList(new ArrayList<>(snapshot));
+    }
+
+    // Apply one "JOIN:<version>:<ip>:<port>" or "LEAVE:<version>:<ip>:<port>" line.
+    // Returns false for anything else and for deltas the snapshot already contained.
+    public synchronized boolean apply(String line) {
+        String[] parts = line.split(":");
+        if (parts.length != 4 || !(parts[0].equals("JOIN") || parts[0].equals("LEAVE"))) {
+            return false;
+        }
+
+        long deltaVersion;
+        int port;
+        try {
+            deltaVersion = Long.parseLong(parts[1]);
+            port = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (deltaVersion <= version) {
+            return false;
+        }
+        if (deltaVersion != version + 1) {
+            Log.warn("Membership jumped from version {} to {}, deltas in between were lost", version, deltaVersion);
+        }
+        version = deltaVersion;
+
+        List<PeerClient10C.ClientInfo> updated = new ArrayList<>(peers);
+        PeerClient10C.ClientInfo peer = new PeerClient10C.ClientInfo(nextId, parts[2], port);
+        if (parts[0].equals("JOIN")) {
+            if (updated.contains(peer)) {
+                return true; // Re-registered under the same address, keep its ID
+            }
+            updated.add(peer);
+            nextId++;
+        } else {
+            updated.remove(peer); // ClientInfo equality is on the address only
+        }
+        peers = Collections.unmodifiableList(updated);
+        return true;
+    }
+
+    public List<PeerClient10C.ClientInfo> snapshot() {
+        return peers;
+    }
+
+    public int size() {
+        return peers.size();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The gossip messages a peer received lately, kept so anti-entropy can resend them to peers that missed them.
+// Bounded in count and age like SeenMessages, anti-entropy only repairs recent gaps.
+public class RecentMessages {
+    private final int maxEntries;
+    private final long expiryNanos;
+
+    // Insertion order, so the eldest entries are both the first to expire and the first to evict
+    private final LinkedHashMap<Long, Entry> messages = new LinkedHashMap<>();
+
+    public RecentMessages(int maxEntries, long expiry, TimeUnit unit) {
+        this.maxEntries = maxEntries;
+        this.expiryNanos = unit.toNanos(expiry);
+    }
+
+    public synchronized void add(PeerMessage message) {
+        long now = System.nanoTime();
+        expire(now);
+        messages.putIfAbsent(message.getMessageId(), new Entry(message, now));
+        if (messages.size() > maxEntries) {
+            Iterator<Long> eldest = messages.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    public synchronized boolean contains(long messageId) {
+        return messages.containsKey(messageId);
+    }
+
+    public synchronized PeerMessage get(long messageId) {
+        Entry entry = messages.get(messageId);
+        return entry != null ? entry.message : null;
+    }
+
+    // IDs of the newest messages, at most limit of them, oldest first
+    public synchronized List<Long> recentIds(int limit) {
+        expire(System.nanoTime());
+        List<Long> ids = new ArrayList<>(messages.keySet());
+        return ids.subList(Math.max(0, ids.size() - limit), ids.size());
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> entries = messages.values().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().receivedAt < expiryNanos) {
+                break;
+            }
+            entries.remove();
+        }
+    }
+
+    private static class Entry {
+        private final PeerMessage message;
+        private final long receivedAt;
+
+        Entry(PeerMessage message, long receivedAt) {
+            this.message = message;
+            this.receivedAt = receivedAt;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Stage between the search cache and the HTTP call: a bounded queue drained at the rate the provider allows.
+// A full queue rejects new searches straight away instead of piling up waiting threads,
+// and searches the provider throttles (429) or fails (5xx) are retried with jittered exponential backoff.
+public class SearchDispatcher {
+    private static final long BASE_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 8000;
+
+    private final SearchResultCache.Loader fetcher;
+    private final int maxAttempts;
+    private final BlockingDeque<Task> queue;
+    private final TokenBucket rateLimiter;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService retryScheduler;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SearchDispatcher(SearchResultCache.Loader fetcher, int queueCapacity, double permitsPerSecond,
+                            int burst, int maxInFlight, int maxAttempts) {
+        this.fetcher = fetcher;
+        this.maxAttempts = maxAttempts;
+        this.queue = new LinkedBlockingDeque<>(queueCapacity);
+        this.rateLimiter = new TokenBucket(permitsPerSecond, burst);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "search-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread dispatcher = new Thread(this::dispatchLoop, "search-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Queue a search, fails fast with RejectedExecutionException when the queue is full
+    public CompletableFuture<SearchResult> submit(String query, int numResults) {
+        Task task = new Task(query, numResults);
+        if (!queue.offerLast(task)) {
+            rejected.incrementAndGet();
+            task.result.completeExceptionally(new RejectedExecutionException("Search queue full, dropping query: " + query));
+            return task.result;
+        }
+        submitted.incrementAndGet();
+        return task.result;
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (true) {
+                Task task = queue.takeFirst();
+                inFlight.acquire();
+                rateLimiter.acquire();
+                dispatch(task);
+            }
+        } catch (InterruptedException e) {
+            Log.info("Search dispatcher interrupted.");
+        }
+    }
+
+    private void dispatch(Task task) {
+        task.attempts++;
+        CompletableFuture<SearchResult> fetch;
+        try {
+            fetch = fetcher.load(task.query, task.numResults);
+        } catch (RuntimeException e) {
+            fetch = CompletableFuture.failedFuture(e);
+        }
+
+        fetch.whenComplete((result, error) -> {
+            inFlight.release();
+            if (error == null) {
+                task.result.complete(result);
+                return;
+            }
+
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (isRetryable(cause) && task.attempts < maxAttempts) {
+                retried.incrementAndGet();
+                retryScheduler.schedule(() -> requeue(task), backoffMillis(task.attempts), TimeUnit.MILLISECONDS);
+            } else {
+                failed.incrementAndGet();
+                task.result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    // Retries go to the front so they aren't starved by newer searches
+    private void requeue(Task task) {
+        if (!queue.offerFirst(task)) {
+            rejected.incrementAndGet();
+            task.result.completeExceptionally(new RejectedExecutionException("Search queue full, dropping retry of query: " + task.query));
+        }
+    }
+
+    // Full jitter: a random wait up to an exponentially growing cap
+    private static long backoffMillis(int attempts) {
+        long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempts - 1, 16));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        if (!(error instanceof GoogleSearchService.SearchFailedException)) {
+            return false;
+        }
+        int statusCode = ((GoogleSearchService.SearchFailedException) error).getStatusCode();
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchDispatcher[queued=" + getQueueDepth() + ", submitted=" + getSubmitted() + ", rejected=" + getRejected()
+                + ", retried=" + getRetried() + ", failed=" + getFailed() + "]";
+    }
+
+    private static class Task {
+        private final String query;
+        private final int numResults;
+        private final CompletableFuture<SearchResult> result = new CompletableFuture<>();
+        private volatile int attempts;
+
+        public Task(String query, int numResults) {
+            this.query = query;
+            this.numResults = numResults;
+        }
+    }
+
+    // Refills continuously at the configured rate and holds at most burst permits
+    private static class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double permits;
+        private long lastRefill = System.nanoTime();
+
+        public TokenBucket(double permitsPerSecond, int burst) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = burst;
+            this.permits = burst;
+        }
+
+        // Only the dispatcher thread calls this, so sleeping here paces dispatch without blocking callers
+        public void acquire() throws InterruptedException {
+            while (true) {
+                long now = System.nanoTime();
+                permits = Math.min(capacity, permits + (now - lastRefill) * permitsPerNano);
+                lastRefill = now;
+                if (permits >= 1) {
+                    permits -= 1;
+                    return;
+                }
+                TimeUnit.NANOSECONDS.sleep((long) Math.ceil((1 - permits) / permitsPerNano));
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pull parser that streams a Custom Search response and keeps only items[].link.
+// Everything else is skipped character by character, no body String or JSON tree is ever built.
+public class SearchLinkExtractor {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private final StringBuilder text = new StringBuilder(); // Reused for keys and link values
+
+    private SearchLinkExtractor(Reader reader) {
+        this.reader = reader;
+    }
+
+    public static List<String> extractLinks(InputStream in) throws IOException {
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new SearchLinkExtractor(reader).parseResponse();
+        }
+    }
+
+    public static List<String> extractLinks(String json) throws IOException {
+        return new SearchLinkExtractor(new StringReader(json)).parseResponse();
+    }
+
+    // Top level object: descend into "items", skip every other member
+    private List<String> parseResponse() throws IOException {
+        List<String> urls = new ArrayList<>();
+        expect('{');
+        if (nextNonWhitespace() == '}') {
+            return urls;
+        }
+        position--;
+
+        do {
+            readString();
+            expect(':');
+            if (textEquals("items") && peekNonWhitespace() == '[') {
+                parseItems(urls);
+            } else {
+                skipValue();
+            }
+        } while (nextNonWhitespace() == ',');
+        return urls;
+    }
+
+    private void parseItems(List<String> urls) throws IOException {
+        expect('[');
+        if (nextNonWhitespace() == ']') {
+            return;
+        }
+        position--;
+
+        do {
+            if (peekNonWhitespace() == '{') {
+                parseItem(urls);
+            } else {
+                skipValue();
+            }
+        } while (nextNonWhitespace() == ',');
+    }
+
+    // One entry of items[], only its own "link" member counts, nested ones (pagemap etc.) are skipped
+    private void parseItem(List<String> urls) throws IOException {
+        expect('{');
+        if (nextNonWhitespace() == '}') {
+            return;
+        }
+        position--;
+
+        do {
+            readString();
+            expect(':');
+            if (textEquals("link") && peekNonWhitespace() == '"') {
+                readString();
+                urls.add(text.toString());  // Add the URL to the list
+            } else {
+                skipValue();
+            }
+        } while (nextNonWhitespace() == ',');
+    }
+
+    // Skip any value, nested objects and arrays included, without materializing it
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            char c = nextNonWhitespace();
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipStringBody();
+                    break;
+                case ',':
+                case ':':
+                    break;
+                default:
+                    // Number, true, false or null: runs until the next structural character
+                    while (!isDelimiter(peek())) {
+                        position++;
+                    }
+            }
+        } while (depth > 0);
+    }
+
+    // Read a quoted string into the reusable text builder, decoding escapes
+    private void readString() throws IOException {
+        expect('"');
+        text.setLength(0);
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            code = (code << 4) | Character.digit(next(), 16);
+                        }
+                        c = (char) code;
+                        break;
+                    default:
+                        break; // \" \\ \/ stand for themselves
+                }
+            }
+            text.append(c);
+        }
+    }
+
+    private void skipStringBody() throws IOException {
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private boolean textEquals(String expected) {
+        return text.length() == expected.length() && expected.contentEquals(text);
+    }
+
+    private void expect(char expected) throws IOException {
+        char c = nextNonWhitespace();
+        if (c != expected) {
+            throw new IOException("Malformed search response: expected '" + expected + "' but found '" + c + "'");
+        }
+    }
+
+    private char peekNonWhitespace() throws IOException {
+        char c = nextNonWhitespace();
+        position--;
+        return c;
+    }
+
+    private char nextNonWhitespace() throws IOException {
+        while (true) {
+            char c = next();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private char peek() throws IOException {
+        char c = next();
+        position--;
+        return c;
+    }
+
+    private char next() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                throw new EOFException("Search response ended unexpectedly");
+            }
+        }
+        return buffer[position++];
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
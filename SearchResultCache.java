@@ -0,0 +1,149 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-process cache of search results keyed on (query, numResults), with size and TTL eviction.
+// Concurrent lookups for the same key share one load instead of each firing an HTTP call.
+public class SearchResultCache {
+
+    // Fetches a result on a miss, a failed load is passed to every waiting caller and nothing is cached
+    public interface Loader {
+        CompletableFuture<SearchResult> load(String query, int numResults);
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Loader loader;
+
+    // Access order, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<SearchResult>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SearchResultCache(int maxEntries, long ttl, TimeUnit unit, Loader loader) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.loader = loader;
+    }
+
+    public CompletableFuture<SearchResult> getAsync(String query, int numResults) {
+        String key = numResults + ":" + query;
+
+        SearchResult cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // Single flight: the first caller loads, everyone else shares its future
+        CompletableFuture<SearchResult> load = new CompletableFuture<>();
+        CompletableFuture<SearchResult> existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+
+        // Another caller may have finished loading between the lookup and claiming the key
+        cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            inFlight.remove(key, load);
+            load.complete(cached);
+            return load;
+        }
+
+        misses.incrementAndGet();
+        CompletableFuture<SearchResult> fetch;
+        try {
+            fetch = loader.load(query, numResults);
+        } catch (RuntimeException e) {
+            fetch = CompletableFuture.failedFuture(e);
+        }
+        fetch.whenComplete((result, error) -> {
+            if (error == null) {
+                store(key, result);
+            }
+            inFlight.remove(key, load);
+            if (error == null) {
+                load.complete(result);
+            } else {
+                load.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            }
+        });
+        return load;
+    }
+
+    private synchronized SearchResult lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.storedAt >= ttlNanos) {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            return null;
+        }
+        return entry.result;
+    }
+
+    private synchronized void store(String key, SearchResult result) {
+        entries.put(key, new Entry(result, System.nanoTime()));
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Lookups that joined a load already in flight instead of starting their own
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResultCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", coalesced=" + getCoalesced() + ", evictions=" + getEvictions() + "]";
+    }
+
+    private static class Entry {
+        private final SearchResult result;
+        private final long storedAt;
+
+        public Entry(SearchResult result, long storedAt) {
+            this.result = result;
+            this.storedAt = storedAt;
+        }
+    }
+}
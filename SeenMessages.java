@@ -0,0 +1,50 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Bounded, time-expiring set of message keys a peer has already handled
+public class SeenMessages {
+    private final int maxEntries;
+    private final long expiryNanos;
+
+    // Insertion order, so the eldest entries are both the first to expire and the first to evict
+    private final LinkedHashMap<Long, Long> seenAt = new LinkedHashMap<>();
+
+    public SeenMessages(int maxEntries, long expiry, TimeUnit unit) {
+        this.maxEntries = maxEntries;
+        this.expiryNanos = unit.toNanos(expiry);
+    }
+
+    // Returns true the first time a key is seen, false for duplicates within the expiry window
+    public synchronized boolean markSeen(long key) {
+        long now = System.nanoTime();
+        expire(now);
+
+        if (seenAt.containsKey(key)) {
+            return false;
+        }
+
+        seenAt.put(key, now);
+        if (seenAt.size() > maxEntries) {
+            Iterator<Long> eldest = seenAt.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return seenAt.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, Long>> entries = seenAt.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().getValue() < expiryNanos) {
+                break;
+            }
+            entries.remove();
+        }
+    }
+}
@@ -1,143 +1,771 @@
 import java.io.*;
 import java.net.*;
-import java.time.LocalDateTime;
-import java.time.Duration;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+// Rendezvous server. Run alone it batches every registration itself. Started with a list of cluster nodes
+// it owns the registrations that hash to it on a consistent hash ring, redirects the others to their owner,
+// and exchanges membership with the other nodes so one logical swarm spans all of them.
+// Usage: java Server10B [port] [node host:port ...]   (the node list includes this server, -Dserver.advertise=host:port
+//        names this server's entry when it isn't 127.0.0.1:<port>)
 public class Server10B {
-    private static final int PORT = 5000;
+    private static final int DEFAULT_PORT = 5000; // Used when no port is given on the command line
     private static final int BATCH_SIZE = 10; // Number of clients per batch
-    private static List<ClientInfo> clients = new ArrayList<>();
-    private static LocalDateTime lastClientConnectedTime;
+    private static final long BATCH_MAX_WAIT_MS = 2000; // Close a partial batch after this long so late peers aren't stranded
+    private static final int ACCEPT_BACKLOG = 4096; // Pending connections the OS may queue during a join storm
+    private static final int MAX_REGISTRATION_LENGTH = 64; // "PORT:<n>" never gets anywhere near this
+    private static final int LINK_BUFFER_SIZE = 64 * 1024; // Read buffer for connections from other rendezvous nodes
+    private static final long LINK_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5); // A few of ClusterLink's 1 s heartbeats
+
+    // Instrumentation, published through Metrics and shared by every server in the JVM
+    private static final LongAdder accepts = Metrics.counter("server.accepts");
+    private static final LongAdder registrations = Metrics.counter("server.registrations");
+    private static final LongAdder malformedRegistrations = Metrics.counter("server.malformedRegistrations");
+    private static final LongAdder redirects = Metrics.counter("server.redirects");
+    private static final LongAdder linkTimeouts = Metrics.counter("server.linkTimeouts");
+    private static final LongAdder batchesClosed = Metrics.counter("server.batches");
+    private static final LongAdder batchTimeouts = Metrics.counter("server.batchTimeouts");
+    private static final LongAdder listsSent = Metrics.counter("server.listsSent");
+    private static final LongAdder deltasSent = Metrics.counter("server.deltasSent");
+    private static final LatencyHistogram broadcastDelay = Metrics.histogram("server.broadcastDelay"); // Last registration of a batch to its list being queued
+    private static final LatencyHistogram listLatency = Metrics.histogram("server.listLatency"); // Accept to the client's list fully written
+    private static final List<Server10B> servers = new CopyOnWriteArrayList<>(); // Several nodes may share a JVM in tests
+
+    static {
+        Metrics.gauge("server.members", () -> servers.stream().mapToLong(server -> server.membership.localSize()).sum());
+        Metrics.gauge("server.subscribers", () -> servers.stream().mapToLong(server -> server.membership.subscriberCount()).sum());
+        Metrics.gauge("server.membershipVersion", () -> servers.stream().mapToLong(server -> server.membership.getVersion()).max().orElse(0));
+    }
+
+    private final int port;
+    private final String selfAddress; // This node's entry on the ring
+    private final HashRing ring; // Null when running alone
+    private final Map<String, ClusterLink> links = new LinkedHashMap<>(); // Outbound links to the other nodes
+    private final Map<String, ClientInfo> nodeLinks = new HashMap<>(); // Current inbound link from each other node, selector thread only
+
+    // Closed batches waiting for the broadcaster, and serialized lists waiting for the selector to flush
+    private final BlockingQueue<Batch> closedBatches = new LinkedBlockingQueue<>();
+    private final Queue<ClientInfo> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Membership membership = new Membership(); // Every known peer, streamed to subscribers as deltas
+    private Batch currentBatch;
+    private int batchCounter = 0;
+
+    public Server10B(int port, List<String> clusterNodes) {
+        this.port = port;
+        if (clusterNodes.isEmpty()) {
+            this.selfAddress = "127.0.0.1:" + port;
+            this.ring = null;
+            return;
+        }
+
+        this.selfAddress = System.getProperty("server.advertise", "127.0.0.1:" + port);
+        if (!clusterNodes.contains(selfAddress)) {
+            throw new IllegalArgumentException("Cluster node list " + clusterNodes + " doesn't include this server, " + selfAddress);
+        }
+        this.ring = new HashRing(clusterNodes);
+        for (String node : clusterNodes) {
+            if (!node.equals(selfAddress)) {
+                links.put(node, new ClusterLink(selfAddress, node, membership::resync));
+            }
+        }
+    }
 
     public static void main(String[] args) {
-        // Use an object for synchronization
-        final Object lock = new Object();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        List<String> clusterNodes = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : List.of();
+        Metrics.expose();
+        new Server10B(port, clusterNodes).run();
+    }
+
+    public void run() {
+        servers.add(this);
+
+        // The selector thread accepts, reads registrations and flushes client lists,
+        // the broadcaster thread serializes closed batches so the next batch keeps filling meanwhile
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Server is listening on port {}", port);
+            if (ring != null) {
+                Log.info("Rendezvous node {} in a cluster of {}", selfAddress, ring.getNodes());
+                links.values().forEach(ClusterLink::start);
+            }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is listening on port " + PORT);
+            Thread broadcaster = new Thread(() -> broadcastBatches(selector), "batch-broadcaster-" + port);
+            broadcaster.setDaemon(true);
+            broadcaster.start();
 
             while (true) {
-                // Reset the clients list for each batch of clients
-                clients = new ArrayList<>();
-
-                // Accept clients until we reach the batch size
-                while (clients.size() < BATCH_SIZE) {
-                    Socket socket = serverSocket.accept();
-                    lastClientConnectedTime = LocalDateTime.now(); // Log time when client connects
-
-                    // Handle the client in a new thread
-                    new Thread(new ClientHandler(socket, lock)).start();
-
-                    // Wait until the client has been added to the list
-                    synchronized (lock) {
-                        while (clients.size() < BATCH_SIZE) {
-                            lock.wait();
-                            break;
+                selector.select(millisUntilNextDeadline());
+
+                // Hand over client lists serialized by the broadcaster since the last wakeup
+                ClientInfo ready;
+                while ((ready = pendingWrites.poll()) != null) {
+                    ready.startWriting();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    try {
+                        if (key.isAcceptable()) {
+                            acceptClients(serverChannel, selector);
+                        } else if (key.isReadable()) {
+                            ClientInfo client = (ClientInfo) key.attachment();
+                            if (client.isLink()) {
+                                readFromNode(client, selector);
+                            } else if (client.isRegistered()) {
+                                // Subscribers only ever send EOF, which is how they leave
+                                if (!client.drainInput()) {
+                                    client.close();
+                                    if (membership.remove(client)) {
+                                        selector.wakeup();
+                                    }
+                                }
+                            } else {
+                                readRegistration(key, selector);
+                            }
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flushClientList(key);
+                        }
+                    } catch (IOException e) {
+                        Log.warn("Client handler exception: {}", e.getMessage());
+                        ClientInfo client = (ClientInfo) key.attachment();
+                        if (client != null) {
+                            if (currentBatch != null) {
+                                currentBatch.clients.remove(client);
+                            }
+                            client.close();
+
+                            // A subscriber or node that went away takes its members with it, the LEAVEs are flushed next round
+                            if (client.isLink() ? dropLink(client) : membership.remove(client)) {
+                                selector.wakeup();
+                            }
                         }
                     }
                 }
 
-                // After receiving clients equal to BATCH_SIZE, broadcast the client list
-                System.out.println(BATCH_SIZE + " clients connected. Broadcasting client list...");
+                // Close a batch that has been waiting too long for its last members
+                if (currentBatch != null && System.nanoTime() >= currentBatch.deadlineNanos) {
+                    Log.info("Batch {} timed out with {} clients.", currentBatch.number, currentBatch.clients.size());
+                    batchTimeouts.increment();
+                    closeCurrentBatch();
+                }
+                dropSilentLinks(selector);
+            }
+
+        } catch (IOException ex) {
+            Log.error("Server exception: {}", ex);
+        } finally {
+            links.values().forEach(ClusterLink::close);
+            servers.remove(this);
+        }
+    }
+
+    // How long the selector may block before the open batch has to be closed or a node link may have gone
+    // silent, 0 means no deadline
+    private long millisUntilNextDeadline() {
+        long now = System.nanoTime();
+        long remaining = Long.MAX_VALUE;
+        if (currentBatch != null) {
+            remaining = currentBatch.deadlineNanos - now;
+        }
+        for (ClientInfo link : nodeLinks.values()) {
+            remaining = Math.min(remaining, link.getLastReadNanos() + LINK_TIMEOUT_NANOS - now);
+        }
+        if (remaining == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    // Accept every pending connection and register it for reading its "PORT:<n>", "SUBSCRIBE:<n>" or "NODE:<host:port>" line
+    private void acceptClients(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            ClientInfo client = new ClientInfo(channel);
+            accepts.increment();
+            client.setKey(channel.register(selector, SelectionKey.OP_READ, client));
+        }
+    }
+
+    // Read whatever bytes have arrived and register the client once a full line is available
+    private void readRegistration(SelectionKey key, Selector selector) throws IOException {
+        ClientInfo client = (ClientInfo) key.attachment();
+        String clientMessage = client.readLine(); // Expecting something like "PORT:6001" or "SUBSCRIBE:6001"
+        if (clientMessage == null) {
+            return; // Line not complete yet, wait for more data
+        }
+        Log.debug("Received from client: {}", clientMessage);
+
+        // Another rendezvous node opening its link, everything after this line is membership changes
+        if (clientMessage.startsWith("NODE:") && ring != null) {
+            String node = clientMessage.substring("NODE:".length());
+            if (!links.containsKey(node)) {
+                Log.warn("Ignoring link from {}, it isn't another node of this cluster", node);
+                malformedRegistrations.increment();
+                client.close();
+                return;
+            }
+            // The node reconnected before its old link failed here. The new link starts by resending
+            // the node's members, so drop the old link's now rather than when its failure shows up.
+            ClientInfo previous = nodeLinks.put(node, client);
+            if (previous != null) {
+                previous.close();
+                if (membership.dropNode(node)) {
+                    selector.wakeup();
+                }
+            }
+            client.becomeLink(node);
+            Log.info("Rendezvous node {} linked in", client.getLinkNode());
+            readFromNode(client, selector);
+            return;
+        }
+
+        // The list is written back later, nothing more to read from this client
+        key.interestOps(0);
+
+        String[] messageParts = clientMessage.split(":");
+        if (messageParts.length != 2 || !(messageParts[0].equals("PORT") || messageParts[0].equals("SUBSCRIBE"))) {
+            Log.warn("Ignoring malformed registration: {}", clientMessage);
+            malformedRegistrations.increment();
+            client.close();
+            return;
+        }
+
+        int clientPort;
+        try {
+            clientPort = Integer.parseInt(messageParts[1].trim());
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring malformed registration: {}", clientMessage);
+            malformedRegistrations.increment();
+            client.close();
+            return;
+        }
+        boolean subscriber = messageParts[0].equals("SUBSCRIBE");
+
+        // Subscribers that hash to another node are sent there, legacy clients can't follow a redirect
+        if (subscriber && ring != null) {
+            String owner = ring.nodeFor(client.getIpAddress() + ":" + clientPort);
+            if (!owner.equals(selfAddress)) {
+                Log.debug("Redirecting {}:{} to {}", client.getIpAddress(), clientPort, owner);
+                redirects.increment();
+                client.queueWrite(ByteBuffer.wrap(("REDIRECT:" + owner + "\n").getBytes(StandardCharsets.UTF_8)));
+                client.startWriting(); // Not a subscriber yet, so it's closed once the redirect is out
+                return;
+            }
+        }
 
-                // Calculate the time difference between the last client and the broadcast
-                LocalDateTime broadcastTime = LocalDateTime.now();
-                Duration timeDiff = Duration.between(lastClientConnectedTime, broadcastTime);
-                System.out.println("Time difference between last client connected and broadcast: " + timeDiff.toMillis() + " milliseconds");
+        client.register(clientPort, subscriber);
+        registrations.increment();
+        if (client.isSubscriber()) {
+            key.interestOps(SelectionKey.OP_READ); // Only to notice when the subscriber disconnects
+        }
+
+        if (currentBatch == null) {
+            currentBatch = new Batch(++batchCounter);
+        }
+        currentBatch.clients.add(client);
+        currentBatch.lastClientConnectedNanos = System.nanoTime(); // Time when the last client registered
+        Log.debug("Client connected from: {} on port: {}", client.getIpAddress(), client.getPort());
+
+        if (currentBatch.clients.size() >= BATCH_SIZE) {
+            Log.info("{} clients connected. Broadcasting client list...", BATCH_SIZE);
+            closeCurrentBatch();
+        }
+    }
 
-                // Broadcast the list to the clients
-                broadcastClientList();
+    // Apply the JOIN/LEAVE lines another node sent about its own members
+    private void readFromNode(ClientInfo link, Selector selector) throws IOException {
+        link.markRead();
+        boolean open = link.fill();
+        boolean changed = false;
+        String line;
+        while ((line = link.nextLine()) != null) {
+            changed |= membership.applyRemote(link.getLinkNode(), line);
+        }
+        if (changed) {
+            selector.wakeup();
+        }
+        if (!open) {
+            throw new EOFException("Rendezvous node " + link.getLinkNode() + " disconnected");
+        }
+        if (link.isReadBufferFull()) {
+            throw new IOException("Line from rendezvous node " + link.getLinkNode() + " too long");
+        }
+    }
 
-                System.out.println("Server is ready to accept more clients.");
+    // A node that died without closing its link sends nothing, not even the heartbeat: drop it like a failed one
+    private void dropSilentLinks(Selector selector) {
+        long now = System.nanoTime();
+        for (ClientInfo link : new ArrayList<>(nodeLinks.values())) {
+            if (now - link.getLastReadNanos() >= LINK_TIMEOUT_NANOS) {
+                Log.warn("Rendezvous node {} sent no heartbeat for {} ms, dropping its link", link.getLinkNode(),
+                        TimeUnit.NANOSECONDS.toMillis(now - link.getLastReadNanos()));
+                linkTimeouts.increment();
+                link.close();
+                if (dropLink(link)) {
+                    selector.wakeup();
+                }
             }
+        }
+    }
+
+    // A failed link takes its node's members with it, unless a newer link from that node already replaced it
+    private boolean dropLink(ClientInfo link) {
+        return nodeLinks.remove(link.getLinkNode(), link) && membership.dropNode(link.getLinkNode());
+    }
+
+    // Hand the open batch to the broadcaster, the next registration starts a new one
+    private void closeCurrentBatch() {
+        if (!currentBatch.clients.isEmpty()) {
+            batchesClosed.increment();
+            closedBatches.add(currentBatch);
+        }
+        currentBatch = null;
+        Log.debug("Server is ready to accept more clients.");
+    }
+
+    // Broadcaster stage: serialize each closed batch and pass it back to the selector for writing
+    private void broadcastBatches(Selector selector) {
+        try {
+            while (true) {
+                Batch batch = closedBatches.take();
 
-        } catch (IOException | InterruptedException ex) {
-            System.out.println("Server exception: " + ex.getMessage());
-            ex.printStackTrace();
+                // Broadcast the list to the clients, recording how long the batch's last client waited for it
+                membership.addBatch(batch.clients);
+                broadcastDelay.recordSince(batch.lastClientConnectedNanos);
+                selector.wakeup();
+            }
+        } catch (InterruptedException e) {
+            Log.info("Batch broadcaster interrupted.");
         }
     }
 
-    private static void broadcastClientList() {
-        StringBuilder clientList = new StringBuilder();
+    // The list a legacy "PORT:" client of a batch receives, terminated by an empty line
+    static byte[] encodeClientList(List<ClientInfo> clients) {
+        StringBuilder clientList = new StringBuilder("Connected Clients: \n");
         for (ClientInfo client : clients) {
             clientList.append(client.getIpAddress())
                       .append(":").append(client.getPort())
                       .append("\n");
         }
+        clientList.append("\n");
+        return clientList.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-        // Broadcast the client list to all clients and close their sockets
-        for (ClientInfo client : clients) {
-            try {
-                Socket socket = client.getSocket();
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                writer.println("Connected Clients: \n" + clientList.toString());
-                System.out.println("Sent client list to " + client.getIpAddress() + ":" + client.getPort());
+    // What a subscriber receives first: the whole membership at one version, terminated by an empty line
+    static byte[] encodeMembership(long version, Collection<ClientInfo> members) {
+        StringBuilder snapshot = new StringBuilder("Membership: ").append(version).append("\n");
+        for (ClientInfo member : members) {
+            snapshot.append(member.getIpAddress())
+                    .append(":").append(member.getPort())
+                    .append("\n");
+        }
+        snapshot.append("\n");
+        return snapshot.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Write as much of the pending output as the socket accepts.
+    // Legacy clients are closed once their list is out, subscribers stay connected for the deltas that follow.
+    private static void flushClientList(SelectionKey key) throws IOException {
+        ClientInfo client = (ClientInfo) key.attachment();
+        if (client.flush()) {
+            if (!client.isRegistered()) {
+                client.close(); // Redirected, the client reconnects to the owning node
+                return;
+            }
+            if (client.markListSent()) {
+                listsSent.increment();
+                listLatency.recordSince(client.getAcceptedAtNanos());
+                Log.debug("Sent client list to {}:{}", client.getIpAddress(), client.getPort());
+            }
 
+            if (client.isSubscriber()) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
                 // Close the client socket after broadcasting
-                socket.close();
-            } catch (IOException e) {
-                System.out.println("Error broadcasting to client: " + client.getIpAddress() + ":" + client.getPort());
+                client.close();
             }
         }
+    }
 
-        System.out.println("Client list broadcasted to all clients.");
+    // Queue output for a client, the selector thread starts the write on its next round
+    private void queueForClient(ClientInfo client, ByteBuffer buffer) {
+        client.queueWrite(buffer);
+        pendingWrites.add(client);
     }
 
-    // Inner class to handle client connection and communication
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private Object lock;
+    // Known peers, versioned so subscribers can apply JOIN/LEAVE deltas in order.
+    // Local members registered here and are announced to the other nodes, remote members were announced by
+    // the node they registered with and go away with it. Legacy clients are never members: they disconnect
+    // right away, so nothing would ever report them leaving, and all they need is their batch's list.
+    private class Membership {
+        private final Map<String, ClientInfo> members = new LinkedHashMap<>(); // Keyed on "ip:port"
+        private final Set<ClientInfo> subscribers = new LinkedHashSet<>();
+        private long version;
+        private int localMembers;
+
+        // Add a closed batch: existing subscribers get one JOIN per new subscriber, the batch gets its lists
+        public synchronized void addBatch(List<ClientInfo> closedBatch) {
+            // Skip clients that disconnected while the batch waited here, remove() has already run for them
+            List<ClientInfo> batch = new ArrayList<>(closedBatch.size());
+            for (ClientInfo client : closedBatch) {
+                if (client.isOpen()) {
+                    batch.add(client);
+                }
+            }
+
+            StringBuilder joins = new StringBuilder();
+            for (ClientInfo client : batch) {
+                if (!client.isSubscriber()) {
+                    continue;
+                }
+                ClientInfo previous = members.put(client.getAddress(), client);
+                if (previous == null || previous.isRemote()) {
+                    localMembers++;
+                }
+                joins.append("JOIN:").append(++version).append(':').append(client.getAddress()).append('\n');
+                publishToNodes("JOIN:" + client.getAddress());
+            }
+            sendToSubscribers(joins);
+
+            // New subscribers get a snapshot that already includes their own batch, legacy clients only their batch
+            byte[] snapshot = null;
+            byte[] batchList = null;
+            for (ClientInfo client : batch) {
+                if (client.isSubscriber()) {
+                    if (snapshot == null) {
+                        snapshot = encodeMembership(version, members.values());
+                    }
+                    queueForClient(client, ByteBuffer.wrap(snapshot));
+                    subscribers.add(client);
+                } else {
+                    if (batchList == null) {
+                        batchList = encodeClientList(batch);
+                    }
+                    queueForClient(client, ByteBuffer.wrap(batchList));
+                }
+            }
+            Log.debug("Client list queued for all clients.");
+        }
 
-        public ClientHandler(Socket socket, Object lock) {
-            this.clientSocket = socket;
-            this.lock = lock;
+        // Returns true when a LEAVE was queued for the remaining subscribers
+        public synchronized boolean remove(ClientInfo client) {
+            if (!subscribers.remove(client) || !members.remove(client.getAddress(), client)) {
+                return false;
+            }
+            localMembers--;
+            sendToSubscribers(new StringBuilder("LEAVE:").append(++version).append(':').append(client.getAddress()).append('\n'));
+            publishToNodes("LEAVE:" + client.getAddress());
+            Log.info("Peer {} left, membership version {}", client.getAddress(), version);
+            return true;
         }
 
-        @Override
-        public void run() {
+        // Apply "JOIN:<ip>:<port>" or "LEAVE:<ip>:<port>" from another node, returns true if subscribers were notified.
+        // Empty lines are that node's heartbeat, anything else fails the link.
+        public synchronized boolean applyRemote(String node, String line) throws IOException {
+            if (line.isEmpty()) {
+                return false;
+            }
+            String[] parts = line.split(":");
+            if (parts.length != 3 || !(parts[0].equals("JOIN") || parts[0].equals("LEAVE"))) {
+                throw new IOException("Malformed line from rendezvous node " + node + ": " + line);
+            }
+            int memberPort;
             try {
-                // Get the client's listening port
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                String clientMessage = reader.readLine(); // Expecting something like "PORT:6001"
-                System.out.println("Received from client: " + clientMessage);
-
-                String[] messageParts = clientMessage.split(":");
-                if (messageParts[0].equals("PORT")) {
-                    int clientPort = Integer.parseInt(messageParts[1]);
-                    String clientIp = clientSocket.getInetAddress().getHostAddress();
-
-                    // Add the client info to the list in a thread-safe manner
-                    synchronized (lock) {
-                        clients.add(new ClientInfo(clientSocket, clientIp, clientPort));
-                        System.out.println("Client connected from: " + clientIp + " on port: " + clientPort);
-
-                        // Notify the main thread that a client has been added
-                        lock.notifyAll();
-                    }
+                memberPort = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed line from rendezvous node " + node + ": " + line);
+            }
+            String address = parts[1] + ":" + memberPort;
+            ClientInfo known = members.get(address);
+
+            if (parts[0].equals("JOIN") && known == null) {
+                ClientInfo member = new ClientInfo(parts[1], memberPort);
+                member.setOrigin(node);
+                members.put(address, member);
+                sendToSubscribers(new StringBuilder("JOIN:").append(++version).append(':').append(address).append('\n'));
+                return true;
+            }
+            if (parts[0].equals("LEAVE") && known != null && node.equals(known.getOrigin())) {
+                members.remove(address);
+                sendToSubscribers(new StringBuilder("LEAVE:").append(++version).append(':').append(address).append('\n'));
+                return true;
+            }
+            return false;
+        }
+
+        // A node's link dropped: forget everyone it announced, they re-appear when it links in again
+        public synchronized boolean dropNode(String node) {
+            StringBuilder leaves = new StringBuilder();
+            for (Iterator<ClientInfo> it = members.values().iterator(); it.hasNext(); ) {
+                ClientInfo member = it.next();
+                if (node.equals(member.getOrigin())) {
+                    it.remove();
+                    leaves.append("LEAVE:").append(++version).append(':').append(member.getAddress()).append('\n');
+                }
+            }
+            Log.info("Rendezvous node {} unlinked, membership version {}", node, version);
+            sendToSubscribers(leaves);
+            return leaves.length() > 0;
+        }
+
+        // A link (re)connected: it starts from the current local members, so its queued changes are obsolete
+        public synchronized List<String> resync(ClusterLink link) {
+            link.startQueueing();
+            List<String> joins = new ArrayList<>(localMembers);
+            for (ClientInfo member : members.values()) {
+                if (!member.isRemote()) {
+                    joins.add("JOIN:" + member.getAddress());
                 }
+            }
+            return joins;
+        }
+
+        private void publishToNodes(String change) {
+            for (ClusterLink link : links.values()) {
+                link.offer(change);
+            }
+        }
 
-            } catch (IOException ex) {
-                System.out.println("Client handler exception: " + ex.getMessage());
+        private void sendToSubscribers(StringBuilder deltas) {
+            if (deltas.length() == 0 || subscribers.isEmpty()) {
+                return;
+            }
+            ByteBuffer encoded = ByteBuffer.wrap(deltas.toString().getBytes(StandardCharsets.UTF_8));
+            for (ClientInfo subscriber : subscribers) {
+                queueForClient(subscriber, encoded.duplicate());
+                deltasSent.increment();
             }
         }
+
+        public synchronized long localSize() {
+            return localMembers;
+        }
+
+        public synchronized long subscriberCount() {
+            return subscribers.size();
+        }
+
+        public synchronized long getVersion() {
+            return version;
+        }
+    }
+
+    // Clients registered since the previous batch closed
+    private static class Batch {
+        private final int number;
+        private final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_MAX_WAIT_MS);
+        private final List<ClientInfo> clients = new ArrayList<>();
+        private long lastClientConnectedNanos;
+
+        public Batch(int number) {
+            this.number = number;
+        }
     }
 
-    // Class to store client information
-    private static class ClientInfo {
-        private Socket socket;
+    // Class to store client information, attached to the client's SelectionKey
+    static class ClientInfo {
+        private SocketChannel channel;
+        private SelectionKey key;
         private String ipAddress;
         private int port;
+        private boolean subscriber; // Stays connected for membership deltas instead of closing after the list
+        private boolean listSent;
+        private String origin; // Node that announced a remote member, null for members registered here
+        private String linkNode; // Set when the connection is another node's link rather than a client
+        private long lastReadNanos; // Of a node link, heartbeats included
+        private ByteBuffer readBuffer = ByteBuffer.allocate(MAX_REGISTRATION_LENGTH);
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>(); // Filled by the broadcaster, drained by the selector
+        private long acceptedAtNanos;
 
-        public ClientInfo(Socket socket, String ipAddress, int port) {
-            this.socket = socket;
+        public ClientInfo(SocketChannel channel) {
+            this.channel = channel;
+            this.acceptedAtNanos = System.nanoTime();
+            this.ipAddress = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        // A client known only by its address, with no connection to this server
+        public ClientInfo(String ipAddress, int port) {
             this.ipAddress = ipAddress;
             this.port = port;
         }
 
-        public Socket getSocket() {
-            return socket;
+        public void setKey(SelectionKey key) {
+            this.key = key;
+        }
+
+        public void register(int port, boolean subscriber) {
+            this.port = port;
+            this.subscriber = subscriber;
+        }
+
+        public boolean isRegistered() {
+            return port != 0;
+        }
+
+        public boolean isSubscriber() {
+            return subscriber;
+        }
+
+        public boolean isOpen() {
+            return channel != null && channel.isOpen();
+        }
+
+        public void setOrigin(String origin) {
+            this.origin = origin;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public boolean isRemote() {
+            return origin != null;
+        }
+
+        // Switch to reading another node's membership stream, keeping whatever already arrived after "NODE:"
+        public void becomeLink(String node) {
+            this.linkNode = node;
+            ByteBuffer larger = ByteBuffer.allocate(LINK_BUFFER_SIZE);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+
+        public void markRead() {
+            lastReadNanos = System.nanoTime();
+        }
+
+        public long getLastReadNanos() {
+            return lastReadNanos;
+        }
+
+        public boolean isLink() {
+            return linkNode != null;
+        }
+
+        public String getLinkNode() {
+            return linkNode;
+        }
+
+        // Returns true the first time only, so the list metrics count each client once
+        public boolean markListSent() {
+            if (listSent) {
+                return false;
+            }
+            listSent = true;
+            return true;
+        }
+
+        // Discard anything a subscriber sends, returns false once it has closed the connection
+        public boolean drainInput() throws IOException {
+            readBuffer.clear();
+            return channel.read(readBuffer) >= 0;
+        }
+
+        // Returns the first line once it has been fully received, null while still incomplete
+        public String readLine() throws IOException {
+            if (!fill()) {
+                throw new EOFException("Client closed the connection before registering");
+            }
+            String line = nextLine();
+            if (line == null && isReadBufferFull()) {
+                throw new IOException("Registration line too long");
+            }
+            return line;
+        }
+
+        // Read whatever has arrived, false once the other side has closed the connection
+        public boolean fill() throws IOException {
+            return channel.read(readBuffer) >= 0;
+        }
+
+        // Take the next complete line out of the read buffer, null if there is none yet
+        public String nextLine() {
+            for (int i = 0; i < readBuffer.position(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    String line = new String(readBuffer.array(), 0, i, StandardCharsets.UTF_8);
+                    readBuffer.flip();
+                    readBuffer.position(i + 1);
+                    readBuffer.compact();
+                    return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+                }
+            }
+            return null;
+        }
+
+        public boolean isReadBufferFull() {
+            return !readBuffer.hasRemaining();
+        }
+
+        // Called by the broadcaster, the write itself starts on the selector thread
+        public void queueWrite(ByteBuffer buffer) {
+            writeQueue.add(buffer);
+        }
+
+        public void startWriting() {
+            if (key.isValid()) {
+                key.interestOps(subscriber ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Returns true once everything queued so far has been written.
+        // A subscriber that fell behind has a snapshot and many deltas queued, they go out in one gathering write.
+        public boolean flush() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer[] pending = writeQueue.toArray(new ByteBuffer[0]); // Oldest first, the broadcaster only appends
+                channel.write(pending);
+                for (ByteBuffer buffer : pending) {
+                    if (buffer.hasRemaining()) {
+                        return false; // Socket buffer full, wait for the next OP_WRITE
+                    }
+                    writeQueue.poll();
+                }
+            }
+            return true;
+        }
+
+        public void close() {
+            try {
+                channel.close(); // Also cancels the key
+            } catch (IOException e) {
+                Log.warn("Error closing client: {}:{}", ipAddress, port);
+            }
         }
 
         public String getIpAddress() {
@@ -147,5 +775,13 @@ public class Server10B {
         public int getPort() {
             return port;
         }
+
+        public String getAddress() {
+            return ipAddress + ":" + port;
+        }
+
+        public long getAcceptedAtNanos() {
+            return acceptedAtNanos;
+        }
     }
 }